@@ -0,0 +1,81 @@
+package bench;
+
+import java.awt.image.BufferedImage;
+import java.lang.invoke.MethodHandle;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Fails (exit code 1) if dithering a frame allocates anything once the JIT has warmed up. The bytes come from
+ * the allocation counter of the current thread, so allocations on other threads are not counted.
+ * <p>
+ * A tool of the benchmark profile, run by hand after changing an engine or the palette; no build phase runs it.
+ */
+public final class AllocationCheck {
+
+    private static final String[] ALGORITHMS = {
+            "FloydSteinberg", "Stucki", "Burkes", "Sierra", "SierraTwoRow", "SierraLite", "Atkinson", "MinimizedAverageError",
+            // one thread dithers on the caller, a palette resolves every row with the batch lookup
+            "OrderedDither"
+    };
+    // perceptual metrics convert every color the palette searches for, CIEDE2000 is slow enough to check only once
+    private static final String[] METRICS = {"OKLAB", "CIEDE2000"};
+    private static final int WIDTH = 320;
+    private static final int HEIGHT = 240;
+    private static final int WARMUP_FRAMES = 200;
+    private static final int MEASURED_FRAMES = 20;
+
+    private AllocationCheck() {}
+
+    public static void main(String[] args) throws Throwable {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        threads.setThreadAllocatedMemoryEnabled(true);
+        int[] pixels = Subjects.testImage(WIDTH, HEIGHT);
+        byte[] bytes = Subjects.toBGR(pixels);
+        BufferedImage image = Subjects.toImage(pixels, WIDTH, HEIGHT);
+        Object palette = Subjects.newPalette(Subjects.paletteColors("16"));
+        int[] lut = Subjects.createLUT(palette);
+        boolean failed = false;
+        for (String algorithm : ALGORITHMS) {
+            for (Object colors : new Object[]{lut, palette}) {
+                Object dither = Subjects.newDither(algorithm, WIDTH, HEIGHT, colors, 1);
+                String mode = colors == lut ? "lut" : "palette";
+                failed |= check(threads, algorithm, mode, "int", Subjects.DITHER_INT, dither, pixels);
+                failed |= check(threads, algorithm, mode, "byte", Subjects.DITHER_BYTE, dither, bytes);
+                failed |= check(threads, algorithm, mode, "image", Subjects.DITHER_IMAGE, dither, image);
+            }
+        }
+        for (String metric : METRICS) {
+            Object dither = Subjects.newDither("FloydSteinberg", WIDTH, HEIGHT, Subjects.withMetric(Subjects.newPalette(Subjects.paletteColors("16")), metric), 1);
+            failed |= check(threads, "FloydSteinberg", metric.toLowerCase(), "int", Subjects.DITHER_INT, dither, pixels);
+        }
+        if (failed) {
+            System.exit(1);
+        }
+    }
+
+    private static boolean check(
+            com.sun.management.ThreadMXBean threads,
+            String algorithm,
+            String mode,
+            String input,
+            MethodHandle handle,
+            Object dither,
+            Object raster
+    ) throws Throwable {
+        for (int i = 0; i < WARMUP_FRAMES; i++) {
+            handle.invoke(dither, raster);
+        }
+        // the counter itself is read twice, whatever that costs is not charged to the frames
+        long overhead = -threads.getCurrentThreadAllocatedBytes() + threads.getCurrentThreadAllocatedBytes();
+        long start = threads.getCurrentThreadAllocatedBytes();
+        for (int i = 0; i < MEASURED_FRAMES; i++) {
+            handle.invoke(dither, raster);
+        }
+        long allocated = threads.getCurrentThreadAllocatedBytes() - start - overhead;
+        long perFrame = allocated / MEASURED_FRAMES;
+        boolean failed = allocated > 0;
+        System.out.printf("%-6s %-22s %-9s %-5s %8d bytes/frame%n", failed ? "FAIL" : "ok", algorithm, mode, input, perFrame);
+        return failed;
+    }
+
+}
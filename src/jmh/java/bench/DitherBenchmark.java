@@ -0,0 +1,118 @@
+package bench;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.awt.image.BufferedImage;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One full frame per operation. The "pixels" counter is reported as pixels per second next to the frame rate;
+ * run with {@code -prof gc} to get the allocation rate per frame ({@code gc.alloc.rate.norm}).
+ * Combinations an algorithm does not support fail in setup and are skipped.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms2g", "-Xmx2g", "--add-modules", "jdk.incubator.vector"})
+public class DitherBenchmark {
+
+    // LUTs take seconds to build, so they are shared by every trial that runs in the same fork
+    private static final Map<String, Object> LUTS = new ConcurrentHashMap<>();
+
+    @Param({"FloydSteinberg", "Stucki", "Burkes", "Sierra", "SierraTwoRow", "SierraLite", "Atkinson", "MinimizedAverageError", "ParallelFSD", "OrderedDither"})
+    public String algorithm;
+
+    // "buffer" is a direct BGR ByteBuffer, read in place
+    @Param({"int", "byte", "image", "buffer"})
+    public String input;
+
+    // an int[] LUT, an IndexedLUT, a LazyLUT that starts empty in every trial or the palette itself
+    @Param({"lut", "indexed", "lazy", "palette"})
+    public String mode;
+
+    @Param({"720p", "1080p", "4K"})
+    public String resolution;
+
+    @Param({"2", "16", "minecraft"})
+    public String palette;
+
+    // LEGACY_DOUBLE builds the algorithm from its kernel with the arithmetic the engines used before fixed point
+    @Param({"FIXED_POINT"})
+    public String arithmetic;
+
+    // only used by ParallelFSD and OrderedDither, 0 means one thread per core
+    @Param({"0"})
+    public int threads;
+
+    private Object dither;
+    private int[] pixels;
+    private byte[] bytes;
+    private BufferedImage image;
+    private ByteBuffer buffer;
+    private int stride;
+    private int pixelsPerFrame;
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Counters {
+        public long pixels;
+    }
+
+    @Setup
+    public void setup() {
+        int[] size = Subjects.resolution(resolution);
+        int width = size[0];
+        int height = size[1];
+        Object colorPalette = Subjects.newPalette(Subjects.paletteColors(palette));
+        Object colors;
+        if (mode.equals("lut")) {
+            colors = LUTS.computeIfAbsent("lut-" + palette, key -> Subjects.createLUT(colorPalette));
+        } else if (mode.equals("indexed")) {
+            colors = LUTS.computeIfAbsent("indexed-" + palette, key -> Subjects.createIndexedLUT(colorPalette));
+        } else if (mode.equals("lazy")) {
+            colors = Subjects.createLazyLUT(colorPalette);
+        } else {
+            colors = colorPalette;
+        }
+        int threadCount = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+        dither = Subjects.newDither(algorithm, width, height, colors, threadCount, arithmetic);
+        pixels = Subjects.testImage(width, height);
+        bytes = Subjects.toBGR(pixels);
+        image = Subjects.toImage(pixels, width, height);
+        buffer = Subjects.toDirectBuffer(bytes);
+        stride = width * 3;
+        pixelsPerFrame = width * height;
+    }
+
+    @Benchmark
+    public BufferedImage dither(Counters counters) throws Throwable {
+        counters.pixels += pixelsPerFrame;
+        switch (input) {
+            case "int":
+                return (BufferedImage) Subjects.DITHER_INT.invokeExact(dither, pixels);
+            case "byte":
+                return (BufferedImage) Subjects.DITHER_BYTE.invokeExact(dither, bytes);
+            case "buffer":
+                return (BufferedImage) Subjects.DITHER_BUFFER.invokeExact(dither, buffer, stride);
+            default:
+                return (BufferedImage) Subjects.DITHER_IMAGE.invokeExact(dither, image);
+        }
+    }
+
+}
@@ -0,0 +1,50 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to fill all 16777216 entries of a LUT, single threaded against the thread pool.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xms2g", "-Xmx2g", "--add-modules", "jdk.incubator.vector"})
+public class LUTBenchmark {
+
+    @Param({"2", "16", "minecraft"})
+    public String palette;
+
+    // 1 is the single threaded path, 0 means one thread per core
+    @Param({"1", "0"})
+    public int threads;
+
+    private Object lut;
+
+    @Setup(Level.Invocation)
+    public void setup() {
+        int threadCount = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+        lut = Subjects.newLUT(Subjects.newPalette(Subjects.paletteColors(palette)), threadCount);
+    }
+
+    @Benchmark
+    public Object createLUT() {
+        Subjects.buildLUT(lut);
+        return lut;
+    }
+
+}
@@ -0,0 +1,297 @@
+package bench;
+
+import java.awt.image.BufferedImage;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * The project lives in the unnamed package, which JMH refuses to generate code for and which named packages
+ * cannot import. Everything the benchmarks touch is bound here once through method handles; the handles are
+ * static finals, so the JIT inlines them like a direct call.
+ */
+final class Subjects {
+
+    static final Class<?> IMAGE_DITHER = type("ImageDither");
+    static final Class<?> COLOR_PALETTE = type("ColorPalette");
+    static final Class<?> COLOR_LOOKUP = type("ColorLookup");
+    static final Class<?> LUT = type("LUT");
+    static final Class<?> DIFFUSION_KERNEL = type("DiffusionKernel");
+
+    static final MethodHandle DITHER_INT = dither(int[].class);
+    static final MethodHandle DITHER_BYTE = dither(byte[].class);
+    static final MethodHandle DITHER_IMAGE = dither(BufferedImage.class);
+    // (dither, buffer, stride), a BGR buffer that starts at index 0
+    static final MethodHandle DITHER_BUFFER = ditherBuffer();
+
+    private static final MethodHandle NEW_PALETTE = constructor(COLOR_PALETTE, int[].class);
+    private static final MethodHandle NEW_LUT = constructor(LUT, COLOR_PALETTE);
+    private static final MethodHandle LUT_ENABLE_MULTI_THREADING = method(LUT, "enableMultiThreading", void.class);
+    private static final MethodHandle LUT_SET_THREAD_COUNT = method(LUT, "setThreadCount", void.class, int.class);
+    private static final MethodHandle LUT_CREATE = method(LUT, "createLUT", void.class);
+    private static final MethodHandle LUT_GET = method(LUT, "getLUT", int[].class);
+    private static final MethodHandle CREATE_INDEXED_LUT = method(COLOR_PALETTE, "createIndexedLUT", type("IndexedLUT"));
+    private static final MethodHandle CREATE_LAZY_LUT = method(COLOR_PALETTE, "createLazyLUT", type("LazyLUT"));
+
+    private Subjects() {}
+
+    static Object newPalette(int[] colors) {
+        try {
+            return NEW_PALETTE.invoke(colors);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static int[] createLUT(Object palette) {
+        return createLUT(palette, 1);
+    }
+
+    static int[] createLUT(Object palette, int threads) {
+        try {
+            Object lut = newLUT(palette, threads);
+            LUT_CREATE.invoke(lut);
+            return (int[]) LUT_GET.invoke(lut);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static Object createIndexedLUT(Object palette) {
+        try {
+            return CREATE_INDEXED_LUT.invoke(palette);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static Object createLazyLUT(Object palette) {
+        try {
+            return CREATE_LAZY_LUT.invoke(palette);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    // the palette searching with a DistanceMetric constant instead of the default, e.g. "CIEDE2000"
+    static Object withMetric(Object palette, String metric) {
+        try {
+            Class<?> metricType = type("DistanceMetric");
+            method(COLOR_PALETTE, "setMetric", void.class, metricType).invoke(palette, metricType.getField(metric).get(null));
+            return palette;
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static Object newLUT(Object palette, int threads) {
+        try {
+            Object lut = NEW_LUT.invoke(palette);
+            if (threads > 1) {
+                LUT_ENABLE_MULTI_THREADING.invoke(lut);
+                LUT_SET_THREAD_COUNT.invoke(lut, threads);
+            }
+            return lut;
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static void buildLUT(Object lut) {
+        try {
+            LUT_CREATE.invoke(lut);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    // the colour source is either an int[] LUT or a ColorLookup, matching the constructors of the algorithms
+    static Object newDither(String algorithm, int width, int height, Object colors, int threads) {
+        Class<?> type = type(algorithm);
+        Class<?> colorType = colors instanceof int[] ? int[].class : COLOR_LOOKUP;
+        try {
+            if (algorithm.equals("ParallelFSD")) {
+                return MethodHandles.publicLookup()
+                        .findConstructor(type, MethodType.methodType(void.class, int.class, int.class, colorType, int.class))
+                        .invoke(width, height, colors, threads);
+            }
+            if (algorithm.equals("OrderedDither")) {
+                // an 8x8 Bayer matrix, the map and spread do not change how long a frame takes
+                Class<?> mapType = type("ThresholdMap");
+                Object map = MethodHandles.publicLookup().findStatic(mapType, "bayer", MethodType.methodType(mapType, int.class)).invoke(8);
+                return MethodHandles.publicLookup()
+                        .findConstructor(type, MethodType.methodType(void.class, int.class, int.class, colorType, mapType, int.class, int.class))
+                        .invoke(width, height, colors, map, 64, threads);
+            }
+            return MethodHandles.publicLookup()
+                    .findConstructor(type, MethodType.methodType(void.class, int.class, int.class, colorType))
+                    .invoke(width, height, colors);
+        } catch (NoSuchMethodException e) {
+            throw new UnsupportedOperationException(algorithm + " cannot be built from a " + colors.getClass().getSimpleName(), e);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    // any other arithmetic than the default builds the algorithm from its kernel, e.g. Stucki from DiffusionKernel.STUCKI
+    static Object newDither(String algorithm, int width, int height, Object colors, int threads, String arithmetic) {
+        if (arithmetic.equals("FIXED_POINT")) {
+            return newDither(algorithm, width, height, colors, threads);
+        }
+        Class<?> colorType = colors instanceof int[] ? int[].class : COLOR_LOOKUP;
+        try {
+            Object kernel = kernel(algorithm, arithmetic);
+            if (algorithm.equals("ParallelFSD")) {
+                return MethodHandles.publicLookup()
+                        .findConstructor(type(algorithm), MethodType.methodType(void.class, int.class, int.class, colorType, int.class, DIFFUSION_KERNEL))
+                        .invoke(width, height, colors, threads, kernel);
+            }
+            return MethodHandles.publicLookup()
+                    .findConstructor(type("ErrorDiffusionDither"), MethodType.methodType(void.class, int.class, int.class, colorType, DIFFUSION_KERNEL))
+                    .invoke(width, height, colors, kernel);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    private static Object kernel(String algorithm, String arithmetic) throws Throwable {
+        // FloydSteinberg -> FLOYD_STEINBERG
+        String name = algorithm.equals("ParallelFSD") ? "FLOYD_STEINBERG" : algorithm.replaceAll("(?<=[a-z])(?=[A-Z])", "_").toUpperCase();
+        Object kernel = DIFFUSION_KERNEL.getField(name).get(null);
+        Class<?> arithmeticType = type("DiffusionKernel$Arithmetic");
+        for (Object constant : arithmeticType.getEnumConstants()) {
+            if (((Enum<?>) constant).name().equals(arithmetic)) {
+                return method(DIFFUSION_KERNEL, "withArithmetic", DIFFUSION_KERNEL, arithmeticType).invoke(kernel, constant);
+            }
+        }
+        throw new IllegalArgumentException("Unknown arithmetic: " + arithmetic);
+    }
+
+    static int[] paletteColors(String palette) {
+        switch (palette) {
+            case "2":
+                return new int[]{0xFF000000, 0xFFFFFFFF};
+            case "16":
+                // the 16 colour CGA/EGA palette
+                return new int[]{
+                        0xFF000000, 0xFF0000AA, 0xFF00AA00, 0xFF00AAAA, 0xFFAA0000, 0xFFAA00AA, 0xFFAA5500, 0xFFAAAAAA,
+                        0xFF555555, 0xFF5555FF, 0xFF55FF55, 0xFF55FFFF, 0xFFFF5555, 0xFFFF55FF, 0xFFFFFF55, 0xFFFFFFFF
+                };
+            case "minecraft":
+                try {
+                    return (int[]) type("MinecraftMapColor").getField("baseColors").get(null);
+                } catch (ReflectiveOperationException e) {
+                    throw new IllegalStateException(e);
+                }
+            default:
+                throw new IllegalArgumentException("Unknown palette: " + palette);
+        }
+    }
+
+    static int[] resolution(String resolution) {
+        switch (resolution) {
+            case "720p":
+                return new int[]{1280, 720};
+            case "1080p":
+                return new int[]{1920, 1080};
+            case "4K":
+                return new int[]{3840, 2160};
+            default:
+                throw new IllegalArgumentException("Unknown resolution: " + resolution);
+        }
+    }
+
+    // smooth gradients with a little noise, so every palette entry gets hit and the error terms are never all zero
+    static int[] testImage(int width, int height) {
+        Random random = new Random(42);
+        int[] pixels = new int[width * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int red = Math.min(255, (x * 255) / width + random.nextInt(16));
+                int green = Math.min(255, (y * 255) / height + random.nextInt(16));
+                int blue = Math.min(255, ((x + y) * 255) / (width + height) + random.nextInt(16));
+                pixels[(y * width) + x] = (255 << 24) + (red << 16) + (green << 8) + blue;
+            }
+        }
+        return pixels;
+    }
+
+    // BGR, the layout of a JavaCV frame and of the byte[] overloads
+    static byte[] toBGR(int[] pixels) {
+        byte[] bytes = new byte[pixels.length * 3];
+        for (int i = 0; i < pixels.length; i++) {
+            bytes[(i * 3)] = (byte) pixels[i];
+            bytes[(i * 3) + 1] = (byte) (pixels[i] >> 8);
+            bytes[(i * 3) + 2] = (byte) (pixels[i] >> 16);
+        }
+        return bytes;
+    }
+
+    // the same pixels in a direct buffer, like the image buffer of a captured frame
+    static ByteBuffer toDirectBuffer(byte[] bgr) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(bgr.length);
+        buffer.put(bgr).flip();
+        return buffer;
+    }
+
+    static BufferedImage toImage(int[] pixels, int width, int height) {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        image.setRGB(0, 0, width, height, pixels, 0, width);
+        return image;
+    }
+
+    private static Class<?> type(String name) {
+        try {
+            return Class.forName(name);
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException(name + " is not on the classpath", e);
+        }
+    }
+
+    private static MethodHandle dither(Class<?> input) {
+        return method(IMAGE_DITHER, "dither", BufferedImage.class, input)
+                .asType(MethodType.methodType(BufferedImage.class, Object.class, input));
+    }
+
+    private static MethodHandle ditherBuffer() {
+        Class<?> pixelFormat = type("PixelFormat");
+        Object bgr = null;
+        for (Object constant : pixelFormat.getEnumConstants()) {
+            if (((Enum<?>) constant).name().equals("BGR")) {
+                bgr = constant;
+            }
+        }
+        MethodHandle handle = method(IMAGE_DITHER, "dither", BufferedImage.class, ByteBuffer.class, pixelFormat, int.class, int.class);
+        return MethodHandles.insertArguments(handle, 2, bgr, 0)
+                .asType(MethodType.methodType(BufferedImage.class, Object.class, ByteBuffer.class, int.class));
+    }
+
+    private static MethodHandle constructor(Class<?> type, Class<?>... parameters) {
+        try {
+            return MethodHandles.publicLookup().findConstructor(type, MethodType.methodType(void.class, parameters));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static MethodHandle method(Class<?> type, String name, Class<?> returnType, Class<?>... parameters) {
+        try {
+            return MethodHandles.publicLookup().findVirtual(type, name, MethodType.methodType(returnType, parameters));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static RuntimeException rethrow(Throwable t) {
+        if (t instanceof RuntimeException) {
+            return (RuntimeException) t;
+        }
+        if (t instanceof Error) {
+            throw (Error) t;
+        }
+        return new IllegalStateException(t);
+    }
+
+}
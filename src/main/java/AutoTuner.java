@@ -0,0 +1,431 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+/**
+ * Finds the fastest way to dither frames of one size with one palette and kernel on the host it runs on, instead of
+ * a fixed heuristic that is wrong on both small and large machines. Every candidate dithers a sample frame for a
+ * short while and the one with the lowest median frame time wins:
+ * <ol>
+ *     <li>the thread count for building the LUT, timed on a sample of its entries</li>
+ *     <li>the int[] LUT against searching the palette, with the sequential engine</li>
+ *     <li>{@link ParallelFSD} with 2, 4, 8, ... threads up to the processor count</li>
+ *     <li>{@link TiledDither} with several tile sizes and thread counts, only if {@link #setAllowTiles(boolean)}
+ *     is on, its output is not the exact result</li>
+ * </ol>
+ * Candidates are tried from the simplest to the most parallel, and a later one only wins when it is at least
+ * {@link #MARGIN} faster, so noise does not trade a thread count for one twice as high.
+ * <p>
+ * {@link #load(Path)} keeps the result in a small properties file: later runs read it instead of calibrating, as
+ * long as the processor count, frame size, kernel and palette are the ones it was measured with.
+ */
+public class AutoTuner {
+
+    // the engines a profile can pick
+    public enum Engine {
+        // ErrorDiffusionDither on the calling thread
+        SEQUENTIAL,
+        // ParallelFSD, bit-identical to SEQUENTIAL
+        WAVEFRONT,
+        // TiledDither over ErrorDiffusionDither, approximate
+        TILED
+    }
+
+    public enum Lookup {
+        LUT,
+        PALETTE
+    }
+
+    // how much faster a candidate has to be than the best one before it
+    public static final double MARGIN = 0.05;
+
+    private static final int PROFILE_VERSION = 1;
+    // LUT entries the build is timed on, a slab from the middle of the table: every green and blue with a band of reds
+    private static final int LUT_SAMPLE = 1 << 20;
+    private static final int[] TILE_SIZES = {64, 128, 256, 512};
+    private static final int TILE_OVERLAP = 16;
+
+    private final ColorPalette PALETTE;
+    private final DiffusionKernel KERNEL;
+    private final int WIDTH;
+    private final int HEIGHT;
+    private final int PROCESSORS;
+    private long candidateMillis = 300;
+    private boolean allowTiles = false;
+    private int[] sample;
+
+    public AutoTuner(ColorPalette palette, DiffusionKernel kernel, int width, int height) {
+        if (width <= 0 || height <= 0) throw new IllegalArgumentException("Frames must be at least 1x1. (" + width + "x" + height + ")");
+        this.PALETTE = palette;
+        this.KERNEL = kernel;
+        this.WIDTH = width;
+        this.HEIGHT = height;
+        this.PROCESSORS = Runtime.getRuntime().availableProcessors();
+    }
+
+    // how long each candidate runs, half of it to warm up, it always dithers at least 2 + 3 frames
+    public void setCandidateMillis(long millis) {
+        if (millis <= 0) throw new IllegalArgumentException("Candidates need a positive time. (" + millis + ")");
+        this.candidateMillis = millis;
+    }
+
+    public void setAllowTiles(boolean allowTiles) {
+        this.allowTiles = allowTiles;
+    }
+
+    // a frame like the ones that will be dithered, by default a noisy gradient
+    public void setSample(int[] raster) {
+        if (raster.length < WIDTH * HEIGHT) throw new IllegalArgumentException("Sample is too small for a " + WIDTH + "x" + HEIGHT + " frame. (" + raster.length + ")");
+        this.sample = raster;
+    }
+
+    // the stored profile if it was measured for this host and these frames, otherwise calibrates and stores it
+    public Profile load(Path file) throws IOException {
+        if (Files.isRegularFile(file)) {
+            Profile profile = Profile.read(file);
+            if (profile != null && profile.matches(PROCESSORS, WIDTH, HEIGHT, kernelKey(KERNEL), paletteKey(PALETTE))) {
+                return profile;
+            }
+        }
+        Profile profile = tune();
+        profile.store(file);
+        return profile;
+    }
+
+    /**
+     * Calibrates, this takes a few seconds plus one LUT build. The LUT goes into {@link LUTRegistry#getInstance()},
+     * where {@link Profile#factory(ColorPalette, DiffusionKernel)} finds it again instead of building it twice.
+     */
+    public Profile tune() {
+        int[] frame = sample == null ? sampleFrame(WIDTH, HEIGHT) : sample;
+        int lutThreads = tuneLUTThreads();
+        int[] lut = LUTRegistry.getInstance().getLUT(PALETTE, lutThreads);
+
+        Candidate best = new Candidate(Engine.SEQUENTIAL, Lookup.LUT, 1, 0);
+        best.time(lut, frame);
+        Candidate palette = new Candidate(Engine.SEQUENTIAL, Lookup.PALETTE, 1, 0);
+        palette.time(lut, frame);
+        best = faster(best, palette);
+        for (int threads : threadCounts()) {
+            Candidate wavefront = new Candidate(Engine.WAVEFRONT, best.LOOKUP, threads, 0);
+            wavefront.time(lut, frame);
+            best = faster(best, wavefront);
+        }
+        if (allowTiles && PROCESSORS > 1) {
+            // the tile size at every processor first, then the thread count for that size
+            Candidate tiled = null;
+            for (int tileSize : TILE_SIZES) {
+                if (tileSize >= Math.max(WIDTH, HEIGHT) && tiled != null) {
+                    break;
+                }
+                Candidate candidate = new Candidate(Engine.TILED, best.LOOKUP, PROCESSORS, tileSize);
+                candidate.time(lut, frame);
+                tiled = tiled == null ? candidate : faster(tiled, candidate);
+            }
+            for (int threads : threadCounts()) {
+                if (threads != PROCESSORS) {
+                    Candidate candidate = new Candidate(Engine.TILED, best.LOOKUP, threads, tiled.TILE_SIZE);
+                    candidate.time(lut, frame);
+                    tiled = threads < tiled.THREADS ? faster(candidate, tiled) : faster(tiled, candidate);
+                }
+            }
+            best = faster(best, tiled);
+        }
+        return new Profile(best.ENGINE, best.LOOKUP, best.THREADS, best.TILE_SIZE, lutThreads, best.frameNanos,
+                PROCESSORS, WIDTH, HEIGHT, kernelKey(KERNEL), paletteKey(PALETTE));
+    }
+
+    // builds a sample of the LUT's entries with 1, 2, 4, ... threads, through the blocks and pool of LUT.createLUT()
+    private int tuneLUTThreads() {
+        int[] threadCounts = IntStream.concat(IntStream.of(1), Arrays.stream(threadCounts())).toArray();
+        int[] entries = new int[LUT_SAMPLE];
+        int start = (16777216 - LUT_SAMPLE) / 2;
+        int best = 1;
+        long bestNanos = Long.MAX_VALUE;
+        for (int threads : threadCounts) {
+            LUT builder = new LUT(PALETTE);
+            configure(builder, threads);
+            long nanos = Long.MAX_VALUE;
+            // the first run warms up
+            for (int run = 0; run < 3; run++) {
+                long begin = System.nanoTime();
+                builder.fillRange(entries, start, start + LUT_SAMPLE);
+                nanos = run == 0 ? Long.MAX_VALUE : Math.min(nanos, System.nanoTime() - begin);
+            }
+            if (nanos < bestNanos * (1 - MARGIN)) {
+                best = threads;
+                bestNanos = nanos;
+            }
+        }
+        return best;
+    }
+
+    // 2, 4, 8, ... below the processor count, then the processor count itself
+    private int[] threadCounts() {
+        List<Integer> counts = new ArrayList<>();
+        for (int threads = 2; threads < PROCESSORS; threads *= 2) {
+            counts.add(threads);
+        }
+        if (PROCESSORS > 1) {
+            counts.add(PROCESSORS);
+        }
+        return counts.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    // the later candidate has to beat the earlier one by the margin
+    private static Candidate faster(Candidate earlier, Candidate later) {
+        return later.frameNanos < earlier.frameNanos * (1 - MARGIN) ? later : earlier;
+    }
+
+    private static void configure(LUT lut, int threads) {
+        if (threads > 1) {
+            lut.enableMultiThreading();
+            lut.setThreadCount(threads);
+        }
+    }
+
+    private static String kernelKey(DiffusionKernel kernel) {
+        return kernel.getName() + "/" + kernel.getArithmetic();
+    }
+
+    // the metric and a hash of the colors, a palette with other colors calibrates again
+    private static String paletteKey(ColorPalette palette) {
+        int[] colors = palette.getColors();
+        return palette.getMetric().getName() + "/" + colors.length + "/" + Integer.toHexString(Arrays.hashCode(colors));
+    }
+
+    // smooth gradients with a little noise, so every palette entry gets hit and the error terms are never all zero
+    private static int[] sampleFrame(int width, int height) {
+        Random random = new Random(42);
+        int[] pixels = new int[width * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int red = Math.min(255, ((x * 255) / width) + random.nextInt(16));
+                int green = Math.min(255, ((y * 255) / height) + random.nextInt(16));
+                int blue = Math.min(255, (((x + y) * 255) / (width + height)) + random.nextInt(16));
+                pixels[(y * width) + x] = (255 << 24) + (red << 16) + (green << 8) + blue;
+            }
+        }
+        return pixels;
+    }
+
+    private static ImageDither create(Engine engine, int threads, int tileSize, int width, int height, int[] lut, ColorLookup lookup, DiffusionKernel kernel) {
+        switch (engine) {
+            case WAVEFRONT:
+                return lut != null ? new ParallelFSD(width, height, lut, threads, kernel) : new ParallelFSD(width, height, lookup, threads, kernel);
+            case TILED:
+                DitherFactory tiles = (tileWidth, tileHeight) -> create(Engine.SEQUENTIAL, 1, 0, tileWidth, tileHeight, lut, lookup, kernel);
+                return new TiledDither(width, height, tiles, tileSize, tileSize, TILE_OVERLAP, threads);
+            default:
+                return lut != null ? new ErrorDiffusionDither(width, height, lut, kernel) : new ErrorDiffusionDither(width, height, lookup, kernel);
+        }
+    }
+
+    private final class Candidate {
+
+        private final Engine ENGINE;
+        private final Lookup LOOKUP;
+        private final int THREADS;
+        private final int TILE_SIZE;
+        private long frameNanos = Long.MAX_VALUE;
+
+        private Candidate(Engine engine, Lookup lookup, int threads, int tileSize) {
+            this.ENGINE = engine;
+            this.LOOKUP = lookup;
+            this.THREADS = threads;
+            this.TILE_SIZE = tileSize;
+        }
+
+        // half the time warms up, the median frame of the other half counts
+        private void time(int[] lut, int[] frame) {
+            ImageDither dither = create(ENGINE, THREADS, TILE_SIZE, WIDTH, HEIGHT, LOOKUP == Lookup.LUT ? lut : null, PALETTE, KERNEL);
+            try {
+                long half = candidateMillis * 500_000;
+                long end = System.nanoTime() + half;
+                for (int frames = 0; frames < 2 || System.nanoTime() < end; frames++) {
+                    dither.dither(frame);
+                }
+                long[] times = new long[16];
+                int count = 0;
+                end = System.nanoTime() + half;
+                while (count < 3 || System.nanoTime() < end) {
+                    long start = System.nanoTime();
+                    dither.dither(frame);
+                    if (count == times.length) {
+                        times = Arrays.copyOf(times, count * 2);
+                    }
+                    times[count++] = System.nanoTime() - start;
+                }
+                Arrays.sort(times, 0, count);
+                frameNanos = times[count / 2];
+            } finally {
+                if (dither instanceof AutoCloseable) {
+                    try {
+                        ((AutoCloseable) dither).close();
+                    } catch (Exception e) {
+                        throw new IllegalStateException("Could not close " + dither + ".", e);
+                    }
+                }
+            }
+        }
+
+    }
+
+    /**
+     * The result of a calibration: which engine and lookup to use, with how many threads, and how many threads
+     * build the LUT. {@link #factory(ColorPalette, DiffusionKernel)} creates engines of the profile's kind.
+     */
+    public static final class Profile {
+
+        private final Engine ENGINE;
+        private final Lookup LOOKUP;
+        private final int THREADS;
+        private final int TILE_SIZE;
+        private final int LUT_THREADS;
+        private final long FRAME_NANOS;
+        // what it was measured with
+        private final int PROCESSORS;
+        private final int WIDTH;
+        private final int HEIGHT;
+        private final String KERNEL;
+        private final String PALETTE;
+
+        private Profile(Engine engine, Lookup lookup, int threads, int tileSize, int lutThreads, long frameNanos,
+                        int processors, int width, int height, String kernel, String palette) {
+            this.ENGINE = engine;
+            this.LOOKUP = lookup;
+            this.THREADS = threads;
+            this.TILE_SIZE = tileSize;
+            this.LUT_THREADS = lutThreads;
+            this.FRAME_NANOS = frameNanos;
+            this.PROCESSORS = processors;
+            this.WIDTH = width;
+            this.HEIGHT = height;
+            this.KERNEL = kernel;
+            this.PALETTE = palette;
+        }
+
+        public Engine getEngine() {
+            return ENGINE;
+        }
+
+        public Lookup getLookup() {
+            return LOOKUP;
+        }
+
+        // 1 for the sequential engine
+        public int getThreads() {
+            return THREADS;
+        }
+
+        // 0 unless the engine is TILED
+        public int getTileSize() {
+            return TILE_SIZE;
+        }
+
+        public int getLUTThreads() {
+            return LUT_THREADS;
+        }
+
+        // the median frame time of the winner during calibration
+        public double getFrameMillis() {
+            return FRAME_NANOS / 1e6;
+        }
+
+        // builds the LUT with the profile's thread count instead of LUT.enableMultiThreading()'s guess
+        public void configure(LUT lut) {
+            AutoTuner.configure(lut, LUT_THREADS);
+        }
+
+        /**
+         * Creates engines of the profile's kind for any size. With {@link Lookup#LUT} the LUT comes from
+         * {@link LUTRegistry#getInstance()}, built with the profile's thread count unless it is there already, e.g.
+         * from {@link AutoTuner#tune()}, and is shared by every engine the factory creates.
+         */
+        public DitherFactory factory(ColorPalette palette, DiffusionKernel kernel) {
+            int[] lut = LOOKUP == Lookup.LUT ? LUTRegistry.getInstance().getLUT(palette, LUT_THREADS) : null;
+            return (width, height) -> create(ENGINE, THREADS, TILE_SIZE, width, height, lut, palette, kernel);
+        }
+
+        private boolean matches(int processors, int width, int height, String kernel, String palette) {
+            return PROCESSORS == processors && WIDTH == width && HEIGHT == height && kernel.equals(KERNEL) && palette.equals(PALETTE);
+        }
+
+        // written to a temporary file and moved into place, so another process never reads half a profile
+        private void store(Path file) throws IOException {
+            Properties properties = new Properties();
+            properties.setProperty("version", Integer.toString(PROFILE_VERSION));
+            properties.setProperty("engine", ENGINE.name());
+            properties.setProperty("lookup", LOOKUP.name());
+            properties.setProperty("threads", Integer.toString(THREADS));
+            properties.setProperty("tileSize", Integer.toString(TILE_SIZE));
+            properties.setProperty("lutThreads", Integer.toString(LUT_THREADS));
+            properties.setProperty("frameNanos", Long.toString(FRAME_NANOS));
+            properties.setProperty("processors", Integer.toString(PROCESSORS));
+            properties.setProperty("width", Integer.toString(WIDTH));
+            properties.setProperty("height", Integer.toString(HEIGHT));
+            properties.setProperty("kernel", KERNEL);
+            properties.setProperty("palette", PALETTE);
+            Path directory = file.toAbsolutePath().getParent();
+            Files.createDirectories(directory);
+            Path temporary = Files.createTempFile(directory, file.getFileName().toString(), ".tmp");
+            try {
+                try (OutputStream output = Files.newOutputStream(temporary)) {
+                    properties.store(output, "AutoTuner profile");
+                }
+                try {
+                    Files.move(temporary, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                } catch (AtomicMoveNotSupportedException e) {
+                    Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING);
+                }
+            } finally {
+                Files.deleteIfExists(temporary);
+            }
+        }
+
+        // null if the file is not a profile of this version, it is calibrated again then
+        private static Profile read(Path file) throws IOException {
+            Properties properties = new Properties();
+            try (InputStream input = Files.newInputStream(file)) {
+                properties.load(input);
+            }
+            try {
+                if (Integer.parseInt(properties.getProperty("version", "0")) != PROFILE_VERSION) {
+                    return null;
+                }
+                return new Profile(
+                        Engine.valueOf(properties.getProperty("engine")),
+                        Lookup.valueOf(properties.getProperty("lookup")),
+                        Integer.parseInt(properties.getProperty("threads")),
+                        Integer.parseInt(properties.getProperty("tileSize")),
+                        Integer.parseInt(properties.getProperty("lutThreads")),
+                        Long.parseLong(properties.getProperty("frameNanos")),
+                        Integer.parseInt(properties.getProperty("processors")),
+                        Integer.parseInt(properties.getProperty("width")),
+                        Integer.parseInt(properties.getProperty("height")),
+                        properties.getProperty("kernel"),
+                        properties.getProperty("palette"));
+            } catch (IllegalArgumentException | NullPointerException e) {
+                return null;
+            }
+        }
+
+        @Override
+        public String toString() {
+            String engine = ENGINE == Engine.TILED ? ENGINE + " " + TILE_SIZE + "x" + TILE_SIZE : ENGINE.toString();
+            return String.format("%s with %s, %d threads (LUT built with %d), %.2f ms per frame", engine, LOOKUP, THREADS, LUT_THREADS, getFrameMillis());
+        }
+
+    }
+
+}
@@ -0,0 +1,474 @@
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Queue;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Dithers many images at once, one image per thread. A single error diffusion pass is sequential, but the images
+ * of a batch are independent, so this scales to every core. The engines come from a {@link DitherFactory}, which
+ * should share one read-only LUT or palette between them. While a stream runs, every thread keeps the engine for
+ * the last size it dithered and only creates a new one when the size changes; once every stream has ended and no
+ * image is being dithered the engines are closed and dropped, so an idle batch holds no memory for them.
+ * <p>
+ * An image is only read once its memory fits under the limit of bytes in flight. It is counted from the size the
+ * source reports before decoding, {@link #BYTES_PER_PIXEL} per pixel, and released when its result is handed out.
+ * An image larger than the limit still goes through, alone. The engines dither straight into the output image,
+ * the engines of this repository allocate no canvas of their own for it.
+ */
+public class BatchDither implements AutoCloseable {
+
+    // the order results are handed out in
+    public enum Order {
+        // the order of the sources, a result waits for the ones before it
+        INPUT,
+        // as soon as an image is done
+        COMPLETION
+    }
+
+    // the decoded image and the output image
+    public static final int BYTES_PER_PIXEL = 8;
+
+    private static final long POLL_MILLIS = 50;
+
+    private final DitherFactory FACTORY;
+    private final int THREAD_COUNT;
+    private final long MAX_BYTES_IN_FLIGHT;
+    private final ExecutorService EXECUTOR;
+    private final ThreadLocal<Engine> ENGINES = new ThreadLocal<>();
+    // every engine a thread holds, so they can be closed; also guards busy and streams
+    private final Queue<Engine> CREATED = new ConcurrentLinkedQueue<>();
+    // images being dithered and streams that have not ended, the engines are dropped when both are back to 0
+    private int busy;
+    private int streams;
+
+    public BatchDither(DitherFactory factory, int threadCount, long maxBytesInFlight) {
+        if (threadCount <= 0) throw new IllegalArgumentException("Invalid thread count. Must be at least 1. (" + threadCount + ")");
+        if (maxBytesInFlight <= 0) throw new IllegalArgumentException("The limit of bytes in flight must be positive. (" + maxBytesInFlight + ")");
+        this.FACTORY = factory;
+        this.THREAD_COUNT = threadCount;
+        this.MAX_BYTES_IN_FLIGHT = maxBytesInFlight;
+        this.EXECUTOR = Executors.newFixedThreadPool(threadCount, runnable -> {
+            Thread thread = new Thread(runnable, "BatchDither-worker");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public int getThreadCount() {
+        return THREAD_COUNT;
+    }
+
+    public long getMaxBytesInFlight() {
+        return MAX_BYTES_IN_FLIGHT;
+    }
+
+    /**
+     * Starts dithering the sources and returns their results as they become available. The sources are taken from
+     * the stream on a thread of the batch. Closing the returned stream stops taking new sources.
+     */
+    public Stream<Result> stream(Stream<? extends Source> sources, Order order) {
+        Run run = new Run(order);
+        synchronized (CREATED) {
+            streams++;
+        }
+        Thread feeder = new Thread(() -> run.feed(sources.iterator()), "BatchDither-feeder");
+        feeder.setDaemon(true);
+        run.feeder = feeder;
+        feeder.start();
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(run, Spliterator.ORDERED | Spliterator.NONNULL), false)
+                .onClose(run::cancel);
+    }
+
+    // blocks until every source went through, the callback runs on the calling thread
+    public void run(Stream<? extends Source> sources, Order order, Consumer<Result> callback) {
+        try (Stream<Result> results = stream(sources, order)) {
+            results.forEach(callback);
+        }
+    }
+
+    // stops the workers and closes the engines they held
+    @Override
+    public void close() {
+        EXECUTOR.shutdownNow();
+        synchronized (CREATED) {
+            closeEngines();
+        }
+    }
+
+    // a file in any format ImageIO reads, only its header is read to get the size
+    public static Source source(Path file) {
+        return new FileSource(file);
+    }
+
+    public static Source source(BufferedImage image) {
+        return new Source() {
+            public int getWidth() {
+                return image.getWidth();
+            }
+
+            public int getHeight() {
+                return image.getHeight();
+            }
+
+            public BufferedImage read() {
+                return image;
+            }
+        };
+    }
+
+    private Result dither(long index, Source source, long bytes) {
+        synchronized (CREATED) {
+            busy++;
+        }
+        try {
+            BufferedImage image = source.read();
+            if (image == null) throw new IOException("No reader found for " + source + ".");
+            ImageDither dither = engine(image.getWidth(), image.getHeight());
+            BufferedImage output = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_ARGB);
+            dither.setTarget(DitherTarget.image(output));
+            dither.dither(image);
+            return new Result(index, source, output, null, bytes);
+        } catch (Throwable t) {
+            return new Result(index, source, null, t, bytes);
+        } finally {
+            synchronized (CREATED) {
+                busy--;
+                if (busy == 0 && streams == 0) {
+                    closeEngines();
+                }
+            }
+        }
+    }
+
+    // with the lock of CREATED held and nothing being dithered, the threads create new engines on their next image
+    private void closeEngines() {
+        Engine engine;
+        while ((engine = CREATED.poll()) != null) {
+            engine.closed = true;
+            engine.close();
+        }
+    }
+
+    private ImageDither engine(int width, int height) {
+        Engine engine = ENGINES.get();
+        if (engine == null || engine.closed || engine.WIDTH != width || engine.HEIGHT != height) {
+            if (engine != null && !engine.closed) {
+                CREATED.remove(engine);
+                engine.close();
+            }
+            engine = new Engine(FACTORY.create(width, height), width, height);
+            ENGINES.set(engine);
+            CREATED.add(engine);
+        }
+        return engine.DITHER;
+    }
+
+    // something that can be dithered, the size has to be known before the image is decoded
+    public interface Source {
+
+        int getWidth() throws IOException;
+
+        int getHeight() throws IOException;
+
+        BufferedImage read() throws IOException;
+
+    }
+
+    // the output of one source, either the dithered image or what went wrong
+    public static final class Result {
+
+        private final long INDEX;
+        private final Source SOURCE;
+        private final BufferedImage IMAGE;
+        private final Throwable ERROR;
+        private final long BYTES;
+
+        private Result(long index, Source source, BufferedImage image, Throwable error, long bytes) {
+            this.INDEX = index;
+            this.SOURCE = source;
+            this.IMAGE = image;
+            this.ERROR = error;
+            this.BYTES = bytes;
+        }
+
+        // position of the source in the input
+        public long getIndex() {
+            return INDEX;
+        }
+
+        public Source getSource() {
+            return SOURCE;
+        }
+
+        // a TYPE_INT_ARGB image of its own, null if the source failed
+        public BufferedImage getImage() {
+            return IMAGE;
+        }
+
+        // null if the source was dithered
+        public Throwable getError() {
+            return ERROR;
+        }
+
+    }
+
+    private static final class FileSource implements Source {
+
+        private final Path FILE;
+        private int width = -1;
+        private int height = -1;
+
+        private FileSource(Path file) {
+            this.FILE = file;
+        }
+
+        public int getWidth() throws IOException {
+            readSize();
+            return width;
+        }
+
+        public int getHeight() throws IOException {
+            readSize();
+            return height;
+        }
+
+        public BufferedImage read() throws IOException {
+            return ImageIO.read(FILE.toFile());
+        }
+
+        private void readSize() throws IOException {
+            if (width >= 0) {
+                return;
+            }
+            try (ImageInputStream input = ImageIO.createImageInputStream(FILE.toFile())) {
+                if (input == null) throw new IOException("Can not open " + FILE + ".");
+                Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+                if (!readers.hasNext()) throw new IOException("No reader found for " + FILE + ".");
+                ImageReader reader = readers.next();
+                try {
+                    reader.setInput(input, true, true);
+                    width = reader.getWidth(0);
+                    height = reader.getHeight(0);
+                } finally {
+                    reader.dispose();
+                }
+            }
+        }
+
+        @Override
+        public String toString() {
+            return FILE.toString();
+        }
+
+    }
+
+    private static final class Engine {
+
+        private final ImageDither DITHER;
+        private final int WIDTH;
+        private final int HEIGHT;
+        // set under the lock of CREATED, the thread that holds the engine reads it after taking that lock
+        private boolean closed;
+
+        private Engine(ImageDither dither, int width, int height) {
+            this.DITHER = dither;
+            this.WIDTH = width;
+            this.HEIGHT = height;
+        }
+
+        private void close() {
+            if (DITHER instanceof AutoCloseable) {
+                try {
+                    ((AutoCloseable) DITHER).close();
+                } catch (Exception e) {
+                    throw new IllegalStateException("Could not close " + DITHER + ".", e);
+                }
+            }
+        }
+
+    }
+
+    // one call of stream(): feeds the sources to the workers and hands the results out
+    private final class Run implements Iterator<Result> {
+
+        private final Order ORDER;
+        private final LinkedBlockingQueue<Result> READY = new LinkedBlockingQueue<>();
+        // results that are done before the ones in front of them, only used in input order
+        private final Map<Long, Result> WAITING = new HashMap<>();
+        private final Object BUDGET = new Object();
+        // the images that were submitted and are not done yet
+        private final Queue<Future<?>> SUBMITTED = new ConcurrentLinkedQueue<>();
+        private long nextIndex;
+        private long reserved;
+        private long handedOut;
+        private Result next;
+        private Thread feeder;
+        private volatile boolean cancelled;
+        // guarded by CREATED
+        private boolean ended;
+        // the number of sources, -1 while they are still being taken
+        private volatile long total = -1;
+        private volatile Throwable failure;
+
+        private Run(Order order) {
+            this.ORDER = order;
+        }
+
+        private void feed(Iterator<? extends Source> sources) {
+            long index = 0;
+            try {
+                while (!cancelled && sources.hasNext()) {
+                    Source source = sources.next();
+                    long jobIndex = index;
+                    long bytes;
+                    try {
+                        bytes = (long) source.getWidth() * source.getHeight() * BYTES_PER_PIXEL;
+                    } catch (IOException e) {
+                        complete(new Result(jobIndex, source, null, e, 0));
+                        index++;
+                        continue;
+                    }
+                    reserve(bytes);
+                    FutureTask<Void> job = new FutureTask<>(() -> complete(dither(jobIndex, source, bytes)), null) {
+                        @Override
+                        protected void done() {
+                            SUBMITTED.remove(this);
+                        }
+                    };
+                    SUBMITTED.add(job);
+                    // cancel() may have gone over the submitted ones before this one was added
+                    if (cancelled) {
+                        job.cancel(true);
+                        break;
+                    }
+                    EXECUTOR.execute(job);
+                    index++;
+                }
+            } catch (InterruptedException e) {
+                // the stream was closed, nobody waits for the rest
+            } catch (Throwable t) {
+                failure = t;
+            } finally {
+                total = index;
+            }
+        }
+
+        private void complete(Result result) {
+            if (ORDER == Order.COMPLETION) {
+                READY.add(result);
+                return;
+            }
+            synchronized (WAITING) {
+                WAITING.put(result.INDEX, result);
+                Result waiting;
+                while ((waiting = WAITING.remove(nextIndex)) != null) {
+                    READY.add(waiting);
+                    nextIndex++;
+                }
+            }
+        }
+
+        // waits until the image fits, an image of any size is let through when nothing else is in flight
+        private void reserve(long bytes) throws InterruptedException {
+            synchronized (BUDGET) {
+                while (reserved > 0 && reserved + bytes > MAX_BYTES_IN_FLIGHT) {
+                    BUDGET.wait();
+                }
+                reserved += bytes;
+            }
+        }
+
+        private void release(long bytes) {
+            synchronized (BUDGET) {
+                reserved -= bytes;
+                BUDGET.notifyAll();
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (next != null) {
+                return true;
+            }
+            try {
+                while (true) {
+                    long count = total;
+                    if (count >= 0 && handedOut == count) {
+                        end();
+                        Throwable error = failure;
+                        if (error != null) {
+                            throw error instanceof RuntimeException ? (RuntimeException) error : new IllegalStateException(error);
+                        }
+                        return false;
+                    }
+                    next = READY.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                    if (next != null) {
+                        return true;
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                cancel();
+                throw new CancellationException("Interrupted while waiting for the next image.");
+            }
+        }
+
+        @Override
+        public Result next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Result result = next;
+            next = null;
+            handedOut++;
+            release(result.BYTES);
+            return result;
+        }
+
+        // stops taking sources, images that did not start are skipped and the ones being dithered are interrupted
+        private void cancel() {
+            cancelled = true;
+            feeder.interrupt();
+            Future<?> job;
+            while ((job = SUBMITTED.poll()) != null) {
+                job.cancel(true);
+            }
+            end();
+        }
+
+        // the engines outlive the images of a stream, they are dropped when the last stream ends
+        private void end() {
+            synchronized (CREATED) {
+                if (!ended) {
+                    ended = true;
+                    streams--;
+                    if (busy == 0 && streams == 0) {
+                        closeEngines();
+                    }
+                }
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,14 @@
+// anything that can map a color to its nearest palette color: the palette itself or one of the LUTs built from it
+
+public interface ColorLookup {
+
+    int findNearestColorRGB(int rgb);
+
+    // length colors at once, result may be the same array as colors if the offsets are the same too
+    default void findNearestColorsRGB(int[] colors, int offset, int[] result, int resultOffset, int length) {
+        for (int i = 0; i < length; i++) {
+            result[resultOffset + i] = findNearestColorRGB(colors[offset + i]);
+        }
+    }
+
+}
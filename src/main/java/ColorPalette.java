@@ -1,17 +1,49 @@
 import java.awt.Color;
+import java.io.IOException;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 // alpha channel ignored when calculating distances, hence alpha channel is dropped in every insertion of colors
 // https://reference.wolfram.com/language/ref/ColorDistance.html#:~:text=The%20alpha%20channel%20is%20not%20used%20when%20computing%20the%20distance%3A
 
-public class ColorPalette {
+public class ColorPalette implements ColorLookup {
+
+    // below this a linear scan over the arrays beats walking the tree
+    static final int KD_TREE_THRESHOLD = 48;
+    // colors resolved per chunk by the batch methods
+    private static final int BATCH_SIZE = 256;
+    // the Vector API is an incubator module, it is only there when the JVM is started with --add-modules jdk.incubator.vector
+    private static final boolean VECTOR_SEARCH = ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent()
+            && VectorNearestSearch.isAvailable();
+
+    // the linear value of every channel value, so converting a color costs three array reads instead of three pow()
+    private static final float[] LINEAR_VALUES = new float[256];
+    // scratch for converting one color into a metric's space, per thread since engines search the palette concurrently
+    private static final ThreadLocal<float[]> COORDINATES = ThreadLocal.withInitial(() -> new float[3]);
+    // the x, y and z of a chunk for the batch methods, per thread for the same reason, so a call per row allocates nothing
+    private static final ThreadLocal<float[][]> BATCH = ThreadLocal.withInitial(() -> new float[3][BATCH_SIZE]);
+
+    static {
+        for (int i = 0; i < LINEAR_VALUES.length; i++) {
+            LINEAR_VALUES[i] = srgbToLinear(i / 255f);
+        }
+    }
 
     private final ArrayList<Integer> palette = new ArrayList<>();
-    private float[] paletteLinearR = null;
-    private float[] paletteLinearG = null;
-    private float[] paletteLinearB = null;
+    private final List<PaletteListener> listeners = new CopyOnWriteArrayList<>();
+    private DistanceMetric metric = DistanceMetric.LINEAR_SRGB;
+    private int[] paletteColors = null;
+    // the palette's colors in the metric's space
+    private float[] paletteX = null;
+    private float[] paletteY = null;
+    private float[] paletteZ = null;
+    private PaletteKDTree paletteTree = null;
+    private VectorNearestSearch paletteVectors = null;
     private boolean paletteChanged = false;
 
     public ColorPalette() {}
@@ -58,6 +90,9 @@ public class ColorPalette {
         if (!palette.contains(color)) {
             palette.add(color);
             paletteChanged = true;
+            for (PaletteListener listener : listeners) {
+                listener.colorAdded(this, color, palette.size() - 1);
+            }
         }
     }
 
@@ -85,9 +120,14 @@ public class ColorPalette {
     }
 
     public void removeColor(int color) {
-        if (palette.contains(color)) {
-            palette.remove(color);
+        int index = palette.indexOf(color);
+        if (index >= 0) {
+            // by index, remove(color) would take the int as an index as well
+            palette.remove(index);
             paletteChanged = true;
+            for (PaletteListener listener : listeners) {
+                listener.colorRemoved(this, color, index);
+            }
         } else {
             throw new IllegalArgumentException(String.format("Color not present in the palette. (%d)", color));
         }
@@ -97,6 +137,33 @@ public class ColorPalette {
         return palette.size();
     }
 
+    public DistanceMetric getMetric() {
+        return metric;
+    }
+
+    /**
+     * Changes how the nearest color is decided, {@link DistanceMetric#LINEAR_SRGB} by default. A LUT built
+     * afterwards answers with the new metric, so a perceptual metric costs nothing extra while dithering with it.
+     */
+    public void setMetric(DistanceMetric metric) {
+        Objects.requireNonNull(metric);
+        if (metric != this.metric) {
+            this.metric = metric;
+            paletteChanged = true;
+            for (PaletteListener listener : listeners) {
+                listener.metricChanged(this, metric);
+            }
+        }
+    }
+
+    public void addListener(PaletteListener listener) {
+        listeners.add(Objects.requireNonNull(listener));
+    }
+
+    public void removeListener(PaletteListener listener) {
+        listeners.remove(listener);
+    }
+
     public int[] createLUT() {
         LUT lut = new LUT(this);
         lut.createLUT();
@@ -118,9 +185,53 @@ public class ColorPalette {
         LUT lut = new LUT(this);
         lut.enableMultiThreading();
         lut.setThreadCount(threadCount);
+        lut.createLUT();
         return lut.getLUT();
     }
 
+    // multi-threaded, off the calling thread. Cancelling the future stops the build
+    public CompletableFuture<int[]> createLUTAsync(LUTProgressListener listener) {
+        LUT lut = new LUT(this);
+        lut.enableMultiThreading();
+        return lut.createLUTAsync(listener);
+    }
+
+    public IndexedLUT createIndexedLUT() {
+        LUT lut = new LUT(this);
+        return lut.createIndexedLUT();
+    }
+
+    public IndexedLUT createIndexedLUT(boolean multiThreadded) {
+        LUT lut = new LUT(this);
+        if (multiThreadded) {
+            lut.enableMultiThreading();
+        }
+        return lut.createIndexedLUT();
+    }
+
+    // kept up to date as colors are added and removed, until it is closed
+    public IncrementalLUT createIncrementalLUT(int threadCount) {
+        return new IncrementalLUT(this, threadCount);
+    }
+
+    // nothing is computed up front, see LazyLUT.startBackgroundFill() to complete it in the background
+    public LazyLUT createLazyLUT() {
+        return new LazyLUT(this);
+    }
+
+    // the LUT from the cache in the directory, built and stored there the first time
+    public MappedLUT createCachedLUT(Path directory) throws IOException {
+        return new LUTCache(directory).load(this);
+    }
+
+    // a copy, in the order the indices of findNearestIndex() refer to
+    public int[] getColors() {
+        if (paletteColors == null || paletteChanged) {
+            convertPalette();
+        }
+        return paletteColors.clone();
+    }
+
     public int findNearestColorRGB(Color color) {
         if (color != null) {
             return findNearestColorRGB(color.getRGB());
@@ -131,62 +242,130 @@ public class ColorPalette {
 
     public int findNearestColorRGB(int rgb) {
         if (palette.isEmpty()) throw new IllegalStateException("No colors are present in the palette. Add by calling addColor() methods");
-        if (paletteLinearR == null || paletteChanged) {
-            convertPaletteToLinear();
+        // the index first, it converts the palette if it changed
+        int index = findNearestIndex(rgb);
+        return paletteColors[index];
+    }
+
+    // position of the nearest color in getColors()
+    public int findNearestIndex(int rgb) {
+        if (palette.isEmpty()) throw new IllegalStateException("No colors are present in the palette. Add by calling addColor() methods");
+        if (paletteX == null || paletteChanged) {
+            convertPalette();
+        }
+        if (metric == DistanceMetric.LINEAR_SRGB) {
+            return getNearestIndex(LINEAR_VALUES[(rgb >> 16) & 0xFF], LINEAR_VALUES[(rgb >> 8) & 0xFF], LINEAR_VALUES[rgb & 0xFF]);
         }
-        float scaledRed = ((rgb >> 16) & 0xFF) / 255f;
-        float scaledGreen = ((rgb >> 8) & 0xFF) / 255f;
-        float scaledBlue = (rgb & 0xFF) / 255f;
-        float[] linear = srgbToLinear(scaledRed, scaledGreen, scaledBlue);
-        return getNearestColor(linear);
+        float[] coordinates = COORDINATES.get();
+        metric.convert(rgb, coordinates, 0);
+        return getNearestIndex(coordinates[0], coordinates[1], coordinates[2]);
     }
 
-    private int getNearestColor(float[] linearCoordinates) {
-        int i = 0;
-        int nearestColor = 0;
+    /**
+     * Resolves length colors at once, like calling {@link #findNearestIndex(int)} for each of them. With the
+     * Vector API a whole vector of colors is compared against one palette entry at a time.
+     */
+    public void findNearestIndices(int[] colors, int offset, int[] indices, int indicesOffset, int length) {
+        if (palette.isEmpty()) throw new IllegalStateException("No colors are present in the palette. Add by calling addColor() methods");
+        if (paletteX == null || paletteChanged) {
+            convertPalette();
+        }
+        float[][] batch = BATCH.get();
+        float[] x = batch[0];
+        float[] y = batch[1];
+        float[] z = batch[2];
+        float[] coordinates = COORDINATES.get();
+        for (int start = 0; start < length; start += BATCH_SIZE) {
+            int count = Math.min(BATCH_SIZE, length - start);
+            for (int i = 0; i < count; i++) {
+                int rgb = colors[offset + start + i];
+                if (metric == DistanceMetric.LINEAR_SRGB) {
+                    x[i] = LINEAR_VALUES[(rgb >> 16) & 0xFF];
+                    y[i] = LINEAR_VALUES[(rgb >> 8) & 0xFF];
+                    z[i] = LINEAR_VALUES[rgb & 0xFF];
+                } else {
+                    metric.convert(rgb, coordinates, 0);
+                    x[i] = coordinates[0];
+                    y[i] = coordinates[1];
+                    z[i] = coordinates[2];
+                }
+            }
+            if (paletteVectors != null) {
+                paletteVectors.findNearestIndices(x, y, z, indices, indicesOffset + start, count);
+            } else {
+                for (int i = 0; i < count; i++) {
+                    indices[indicesOffset + start + i] = getNearestIndex(x[i], y[i], z[i]);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void findNearestColorsRGB(int[] colors, int offset, int[] result, int resultOffset, int length) {
+        findNearestIndices(colors, offset, result, resultOffset, length);
+        for (int i = resultOffset; i < resultOffset + length; i++) {
+            result[i] = paletteColors[result[i]];
+        }
+    }
+
+    // called for every pixel when there is no LUT, so it works on primitives only
+    private int getNearestIndex(float x, float y, float z) {
+        if (paletteVectors != null) {
+            return paletteVectors.findNearestIndex(x, y, z);
+        }
+        if (paletteTree != null) {
+            return paletteTree.findNearestIndex(x, y, z);
+        }
+        boolean euclidean = metric.isEuclidean();
+        int nearestIndex = 0;
         float minDistance = Float.MAX_VALUE;
-        for (int color : palette) {
-            float distance = ((linearCoordinates[0] - paletteLinearR[i]) * (linearCoordinates[0] - paletteLinearR[i])) +
-                    ((linearCoordinates[1] - paletteLinearG[i]) * (linearCoordinates[1] - paletteLinearG[i])) +
-                    ((linearCoordinates[2] - paletteLinearB[i]) * (linearCoordinates[2] - paletteLinearB[i]));
+        for (int i = 0; i < paletteColors.length; i++) {
+            float distance = euclidean
+                    ? ((x - paletteX[i]) * (x - paletteX[i])) + ((y - paletteY[i]) * (y - paletteY[i])) + ((z - paletteZ[i]) * (z - paletteZ[i]))
+                    : metric.distance(x, y, z, paletteX[i], paletteY[i], paletteZ[i]);
             if (distance < minDistance) {
                 minDistance = distance;
-                nearestColor = color;
+                nearestIndex = i;
             }
-            i++;
         }
-        return nearestColor;
+        return nearestIndex;
     }
 
-    // enables faster computation of distances
-    private void convertPaletteToLinear() {
+    // enables faster computation of distances, the palette is converted into the metric's space once
+    private void convertPalette() {
         int paletteSize = palette.size();
-        paletteLinearR = new float[paletteSize];
-        paletteLinearG = new float[paletteSize];
-        paletteLinearB = new float[paletteSize];
+        paletteColors = new int[paletteSize];
+        paletteX = new float[paletteSize];
+        paletteY = new float[paletteSize];
+        paletteZ = new float[paletteSize];
+        float[] coordinates = new float[3];
         int index = 0;
         for (int color: palette) {
-            float scaledRed = ((color >> 16) & 0xFF) / 255f;
-            float scaledGreen = ((color >> 8) & 0xFF) / 255f;
-            float scaledBlue = (color & 0xFF) / 255f;
-            float[] coordinates = srgbToLinear(scaledRed, scaledGreen, scaledBlue);
-            paletteLinearR[index] = coordinates[0];
-            paletteLinearG[index] = coordinates[1];
-            paletteLinearB[index] = coordinates[2];
+            paletteColors[index] = color;
+            metric.convert(color, coordinates, 0);
+            paletteX[index] = coordinates[0];
+            paletteY[index] = coordinates[1];
+            paletteZ[index] = coordinates[2];
             index++;
         }
+        // the vectors and the tree search by euclidean distance, any other metric compares every entry
+        boolean euclidean = metric.isEuclidean();
+        // comparing a vector of entries at once beats the tree, it is only needed without the Vector API
+        paletteVectors = euclidean && VECTOR_SEARCH ? new VectorNearestSearch(paletteX, paletteY, paletteZ) : null;
+        paletteTree = euclidean && paletteVectors == null && paletteSize >= KD_TREE_THRESHOLD ? new PaletteKDTree(paletteX, paletteY, paletteZ) : null;
         paletteChanged = false;
     }
 
+    // the same value findNearestColorRGB() works with for a channel value of 0 to 255
+    static float toLinear(int channel) {
+        return LINEAR_VALUES[channel];
+    }
+
     // https://surma.dev/things/ditherpunk/#:~:text=Gamma,following%20it%20myself
     // http://www.brucelindbloom.com/index.html?Eqn_RGB_to_XYZ.html (Inverse sRGB Companding)
     // https://en.wikipedia.org/wiki/SRGB#From_sRGB_to_CIE_XYZ
-    private float[] srgbToLinear(float scaledRed, float scaledGreen, float scaledBlue) {
-        return new float[]{
-                scaledRed <= 0.04045 ? scaledRed / 12.92f : (float) Math.pow(((scaledRed + 0.055) / 1.055), 2.4),
-                scaledGreen <= 0.04045 ? scaledGreen / 12.92f : (float) Math.pow(((scaledGreen + 0.055) / 1.055), 2.4),
-                scaledBlue <= 0.04045 ? scaledBlue / 12.92f : (float) Math.pow(((scaledBlue + 0.055) / 1.055), 2.4)
-        };
+    private static float srgbToLinear(float scaledValue) {
+        return scaledValue <= 0.04045 ? scaledValue / 12.92f : (float) Math.pow(((scaledValue + 0.055) / 1.055), 2.4);
     }
 
-}
\ No newline at end of file
+}
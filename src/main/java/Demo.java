@@ -30,6 +30,8 @@ public class Demo {
 //              new Color(255, 255, 255)
 //      });
        ColorPalette palette = new ColorPalette(MinecraftMapColor.baseColors);
+       // also visible in JConsole under dither:type=DitherMetrics
+       DitherMetrics.enable();
 //       FFmpegFrameGrabber grabber = new FFmpegFrameGrabber("video=screen-capture-recorder");
 //       grabber.setFormat("dshow");
        FFmpegFrameGrabber grabber = new FFmpegFrameGrabber("desktop");
@@ -38,34 +40,27 @@ public class Demo {
 //       grabber.setVideoCodec(4);
        final int WIDTH = 1920;
        final int HEIGHT = 1080;
-       grabber.setImageWidth(WIDTH);
-       grabber.setImageHeight(HEIGHT);
-       byte[] bytes = new byte[(WIDTH * HEIGHT) * 3];
-       BufferedImage resized = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_ARGB);
-       Graphics2D g2d = resized.createGraphics();
-       FloydSteinberg alg = new FloydSteinberg(WIDTH, HEIGHT, palette.createLUT(true));
+       // the desktop hardly changes between frames, only the rows from the first change down are dithered again
+       TemporalDither alg = new TemporalDither(WIDTH, HEIGHT, palette.createLUT(true), DiffusionKernel.FLOYD_STEINBERG);
        CanvasFrame window = new CanvasFrame("Floyd-Steinberg Dithering (" + palette.getLength() + " Colors)");
-       Java2DFrameConverter converter = new Java2DFrameConverter();
-       grabber.start();
-       while (true) {
-           long grabStart = System.currentTimeMillis();
-           Frame frame = grabber.grab();
-           BufferedImage image = converter.convert(frame);
-           g2d.drawImage(image, 0, 0, WIDTH, HEIGHT, null);
-//           Buffer[] buffer = frame.image;
-//           ByteBuffer byteBuffer = (ByteBuffer) buffer[0];
-//           byteBuffer.get(bytes);
-           long grabEnd = System.currentTimeMillis();
-           window.showImage(alg.dither(resized.getRGB(0, 0, WIDTH, HEIGHT, null, 0, WIDTH)));
-//           window.showImage(alg.dither(bytes));
-           long ditherEnd = System.currentTimeMillis();
-           printMetrics(grabStart, grabEnd, ditherEnd);
-//           byteBuffer.rewind();
+       // grabbing, dithering and showing overlap, a frame that cannot be shown in time is dropped
+       try (FramePipeline pipeline = new FramePipeline(grabber, WIDTH, HEIGHT, alg, window::showImage, 2, FramePipeline.OverflowPolicy.DROP_OLDEST)) {
+           pipeline.start();
+           long displayed = 0;
+           while (pipeline.isRunning()) {
+               Thread.sleep(1000);
+               long total = pipeline.getDisplayedFrames();
+               printMetrics(total - displayed, pipeline.getDroppedFrames());
+               displayed = total;
+           }
+           pipeline.await();
        }
    }
 
-   private static void printMetrics(long grabStart, long grabEnd, long ditherEnd) {
-       System.out.println("Grab time: " + (grabEnd - grabStart) + "ms | Render time: " + (ditherEnd - grabEnd) + " ms | FPS: " + ((int) (1000 / (ditherEnd - grabStart))));
+   private static void printMetrics(long framesShown, long framesDropped) {
+       DitherMetrics metrics = DitherMetrics.getInstance();
+       System.out.printf("FPS: %d | Dropped: %d | Dither p50 %.2f ms, p99 %.2f ms%n", framesShown, framesDropped,
+               metrics.getLatencyP50Millis(), metrics.getLatencyP99Millis());
    }
 
 }
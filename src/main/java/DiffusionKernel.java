@@ -0,0 +1,276 @@
+import java.util.Arrays;
+
+// an error diffusion kernel: every entry sends weight / divisor of the quantization error to the pixel at (x + dx, y + dy)
+
+public class DiffusionKernel {
+
+    public static final DiffusionKernel FLOYD_STEINBERG = new DiffusionKernel("Floyd-Steinberg", 16, new int[][]{
+                         {1, 0, 7},
+            {-1, 1, 3}, {0, 1, 5}, {1, 1, 1}
+    });
+
+    public static final DiffusionKernel MINIMIZED_AVERAGE_ERROR = new DiffusionKernel("Minimized Average Error", 48, new int[][]{
+                                              {1, 0, 7}, {2, 0, 5},
+            {-2, 1, 3}, {-1, 1, 5}, {0, 1, 7}, {1, 1, 5}, {2, 1, 3},
+            {-2, 2, 1}, {-1, 2, 3}, {0, 2, 5}, {1, 2, 3}, {2, 2, 1}
+    });
+
+    public static final DiffusionKernel STUCKI = new DiffusionKernel("Stucki", 42, new int[][]{
+                                              {1, 0, 8}, {2, 0, 4},
+            {-2, 1, 2}, {-1, 1, 4}, {0, 1, 8}, {1, 1, 4}, {2, 1, 2},
+            {-2, 2, 1}, {-1, 2, 2}, {0, 2, 4}, {1, 2, 2}, {2, 2, 1}
+    });
+
+    public static final DiffusionKernel BURKES = new DiffusionKernel("Burkes", 32, new int[][]{
+                                              {1, 0, 8}, {2, 0, 4},
+            {-2, 1, 2}, {-1, 1, 4}, {0, 1, 8}, {1, 1, 4}, {2, 1, 2}
+    });
+
+    public static final DiffusionKernel SIERRA = new DiffusionKernel("Sierra", 32, new int[][]{
+                                              {1, 0, 5}, {2, 0, 3},
+            {-2, 1, 2}, {-1, 1, 4}, {0, 1, 5}, {1, 1, 4}, {2, 1, 2},
+                        {-1, 2, 2}, {0, 2, 3}, {1, 2, 2}
+    });
+
+    public static final DiffusionKernel SIERRA_TWO_ROW = new DiffusionKernel("Two-Row Sierra", 16, new int[][]{
+                                              {1, 0, 4}, {2, 0, 3},
+            {-2, 1, 1}, {-1, 1, 2}, {0, 1, 3}, {1, 1, 2}, {2, 1, 1}
+    });
+
+    public static final DiffusionKernel SIERRA_LITE = new DiffusionKernel("Sierra Lite", 4, new int[][]{
+                         {1, 0, 2},
+            {-1, 1, 1}, {0, 1, 1}
+    });
+
+    // only 6/8 of the error is diffused, on purpose
+    public static final DiffusionKernel ATKINSON = new DiffusionKernel("Atkinson", 8, new int[][]{
+                                   {1, 0, 1}, {2, 0, 1},
+            {-1, 1, 1}, {0, 1, 1}, {1, 1, 1},
+                        {0, 2, 1}
+    });
+
+    // how the engines spread the error over the entries
+    public enum Arithmetic {
+        // integer weights scaled to 1 << FIXED_POINT_SHIFT, every share is rounded half away from zero
+        FIXED_POINT,
+        // double weights, every share is truncated toward zero, as the engines did before
+        LEGACY_DOUBLE
+    }
+
+    // exact for every power-of-two divisor, within 1 / 65536 of the weight for the others
+    public static final int FIXED_POINT_SHIFT = 16;
+
+    private final String NAME;
+    private final int DIVISOR;
+    private final int[] OFFSETS_X;
+    private final int[] OFFSETS_Y;
+    private final int[] WEIGHTS;
+    private final int ROWS;
+    private final int LEFT;
+    private final int RIGHT;
+    private final int[] FIXED_WEIGHTS;
+    // weight / divisor, for LEGACY_DOUBLE
+    private final double[] FRACTIONS;
+    private final Arithmetic ARITHMETIC;
+
+    /**
+     * @param entries {dx, dy, weight} triplets. Error can only flow to pixels that are not quantized yet,
+     *                so entries on the current row (dy = 0) must point to the right.
+     */
+    public DiffusionKernel(String name, int divisor, int[][] entries) {
+        if (divisor <= 0) throw new IllegalArgumentException("Divisor must be positive. (" + divisor + ")");
+        if (entries == null || entries.length == 0) throw new IllegalArgumentException("A kernel needs at least one entry.");
+        this.NAME = name;
+        this.DIVISOR = divisor;
+        this.OFFSETS_X = new int[entries.length];
+        this.OFFSETS_Y = new int[entries.length];
+        this.WEIGHTS = new int[entries.length];
+        int rows = 1;
+        int left = 0;
+        int right = 0;
+        for (int i = 0; i < entries.length; i++) {
+            int[] entry = entries[i];
+            if (entry.length != 3) throw new IllegalArgumentException("Entries are {dx, dy, weight} triplets. " + Arrays.toString(entry));
+            if (entry[1] < 0 || (entry[1] == 0 && entry[0] <= 0)) {
+                throw new IllegalArgumentException("Entry points to a pixel that is already quantized. " + Arrays.toString(entry));
+            }
+            if (entry[2] <= 0) throw new IllegalArgumentException("Weights must be positive. " + Arrays.toString(entry));
+            OFFSETS_X[i] = entry[0];
+            OFFSETS_Y[i] = entry[1];
+            WEIGHTS[i] = entry[2];
+            rows = Math.max(rows, entry[1] + 1);
+            left = Math.max(left, -entry[0]);
+            right = Math.max(right, entry[0]);
+        }
+        this.ROWS = rows;
+        this.LEFT = left;
+        this.RIGHT = right;
+        this.FIXED_WEIGHTS = new int[entries.length];
+        for (int i = 0; i < entries.length; i++) {
+            FIXED_WEIGHTS[i] = (int) ((((long) WEIGHTS[i] << FIXED_POINT_SHIFT) + (divisor / 2)) / divisor);
+        }
+        this.FRACTIONS = new double[entries.length];
+        for (int i = 0; i < entries.length; i++) {
+            FRACTIONS[i] = WEIGHTS[i] / (double) divisor;
+        }
+        this.ARITHMETIC = Arithmetic.FIXED_POINT;
+    }
+
+    private DiffusionKernel(DiffusionKernel kernel, Arithmetic arithmetic) {
+        this.NAME = kernel.NAME;
+        this.DIVISOR = kernel.DIVISOR;
+        this.OFFSETS_X = kernel.OFFSETS_X;
+        this.OFFSETS_Y = kernel.OFFSETS_Y;
+        this.WEIGHTS = kernel.WEIGHTS;
+        this.ROWS = kernel.ROWS;
+        this.LEFT = kernel.LEFT;
+        this.RIGHT = kernel.RIGHT;
+        this.FIXED_WEIGHTS = kernel.FIXED_WEIGHTS;
+        this.FRACTIONS = kernel.FRACTIONS;
+        this.ARITHMETIC = arithmetic;
+    }
+
+    // the same kernel spreading its error with the given arithmetic, kernels use FIXED_POINT unless told otherwise
+    public DiffusionKernel withArithmetic(Arithmetic arithmetic) {
+        return arithmetic == ARITHMETIC ? this : new DiffusionKernel(this, arithmetic);
+    }
+
+    public Arithmetic getArithmetic() {
+        return ARITHMETIC;
+    }
+
+    public String getName() {
+        return NAME;
+    }
+
+    public int getDivisor() {
+        return DIVISOR;
+    }
+
+    public int getLength() {
+        return WEIGHTS.length;
+    }
+
+    public int getOffsetX(int entry) {
+        return OFFSETS_X[entry];
+    }
+
+    public int getOffsetY(int entry) {
+        return OFFSETS_Y[entry];
+    }
+
+    public int getWeight(int entry) {
+        return WEIGHTS[entry];
+    }
+
+    // weight / divisor as a fraction of 1 << FIXED_POINT_SHIFT
+    public int getFixedWeight(int entry) {
+        return FIXED_WEIGHTS[entry];
+    }
+
+    // rows the kernel spans, including the current one
+    public int getRows() {
+        return ROWS;
+    }
+
+    // how far the kernel reaches to the left of the current pixel
+    public int getLeft() {
+        return LEFT;
+    }
+
+    // how far the kernel reaches to the right of the current pixel
+    public int getRight() {
+        return RIGHT;
+    }
+
+    @Override
+    public String toString() {
+        return NAME;
+    }
+
+    // the engines spread the error through the methods below, so they all use the same tables and arithmetic.
+    // Working rows are padded by getLeft() on the left and repeat every `rows` rows, every channel is clamped to
+    // 0..255 after each entry
+
+    // where every entry lands for the pixel at x = 0 of row y, add x for the pixel at x
+    void targets(int[] targets, int y, int rows, int stride, int padding) {
+        for (int i = 0; i < targets.length; i++) {
+            targets[i] = (((y + OFFSETS_Y[i]) % rows) * stride) + padding + OFFSETS_X[i];
+        }
+    }
+
+    // the error of the pixel at x into working rows with one plane per channel
+    void spread(int[] red, int[] green, int[] blue, int[] targets, int x, int errorR, int errorG, int errorB) {
+        if (ARITHMETIC == Arithmetic.LEGACY_DOUBLE) {
+            for (int i = 0; i < targets.length; i++) {
+                int target = targets[i] + x;
+                red[target] = addError(red[target], errorR, FRACTIONS[i]);
+                green[target] = addError(green[target], errorG, FRACTIONS[i]);
+                blue[target] = addError(blue[target], errorB, FRACTIONS[i]);
+            }
+        } else {
+            for (int i = 0; i < targets.length; i++) {
+                int target = targets[i] + x;
+                red[target] = addError(red[target], errorR, FIXED_WEIGHTS[i]);
+                green[target] = addError(green[target], errorG, FIXED_WEIGHTS[i]);
+                blue[target] = addError(blue[target], errorB, FIXED_WEIGHTS[i]);
+            }
+        }
+    }
+
+    // the same for packed ARGB working rows, ParallelFSD keeps the whole image in them
+    void spread(int[] rows, int[] targets, int x, int errorR, int errorG, int errorB) {
+        if (ARITHMETIC == Arithmetic.LEGACY_DOUBLE) {
+            for (int i = 0; i < targets.length; i++) {
+                int target = targets[i] + x;
+                int color = rows[target];
+                rows[target] = pack(addError((color >> 16) & 0xFF, errorR, FRACTIONS[i]), addError((color >> 8) & 0xFF, errorG, FRACTIONS[i]), addError(color & 0xFF, errorB, FRACTIONS[i]));
+            }
+        } else {
+            for (int i = 0; i < targets.length; i++) {
+                int target = targets[i] + x;
+                int color = rows[target];
+                rows[target] = pack(addError((color >> 16) & 0xFF, errorR, FIXED_WEIGHTS[i]), addError((color >> 8) & 0xFF, errorG, FIXED_WEIGHTS[i]), addError(color & 0xFF, errorB, FIXED_WEIGHTS[i]));
+            }
+        }
+    }
+
+    // only the entries that reach minOffsetY or more rows down, for error replayed into rows loaded after it was made
+    void spreadBelow(int[] red, int[] green, int[] blue, int[] targets, int x, int errorR, int errorG, int errorB, int minOffsetY) {
+        boolean legacy = ARITHMETIC == Arithmetic.LEGACY_DOUBLE;
+        for (int i = 0; i < targets.length; i++) {
+            if (OFFSETS_Y[i] >= minOffsetY) {
+                int target = targets[i] + x;
+                if (legacy) {
+                    red[target] = addError(red[target], errorR, FRACTIONS[i]);
+                    green[target] = addError(green[target], errorG, FRACTIONS[i]);
+                    blue[target] = addError(blue[target], errorB, FRACTIONS[i]);
+                } else {
+                    red[target] = addError(red[target], errorR, FIXED_WEIGHTS[i]);
+                    green[target] = addError(green[target], errorG, FIXED_WEIGHTS[i]);
+                    blue[target] = addError(blue[target], errorB, FIXED_WEIGHTS[i]);
+                }
+            }
+        }
+    }
+
+    private static int pack(int red, int green, int blue) {
+        return (255 << 24) + (red << 16) + (green << 8) + blue;
+    }
+
+    // LEGACY_DOUBLE, the share is truncated toward zero like ImageDither.distributeError did
+    private static int addError(int channel, int quantizationError, double fraction) {
+        return Math.min(255, Math.max(0, (int) (channel + fraction * quantizationError)));
+    }
+
+    // FIXED_POINT, weight is getFixedWeight()
+    private static int addError(int channel, int quantizationError, int weight) {
+        return Math.min(255, Math.max(0, channel + share(quantizationError * weight)));
+    }
+
+    // rounds half away from zero, so positive and negative errors are treated alike and nothing drifts either way
+    private static int share(int scaledError) {
+        return (scaledError + (1 << (FIXED_POINT_SHIFT - 1)) - (scaledError >>> 31)) >> FIXED_POINT_SHIFT;
+    }
+
+}
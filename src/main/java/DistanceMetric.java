@@ -0,0 +1,34 @@
+/**
+ * How a {@link ColorPalette} decides which of its colors is nearest. Colors are converted into the metric's space
+ * once: the palette's own colors whenever the palette changes, and every other color when it is looked up. A LUT
+ * built from the palette pays for the metric once, dithering with the LUT is equally fast whatever the metric.
+ */
+public interface DistanceMetric {
+
+    // squared euclidean distance in linear sRGB, the palette's default
+    DistanceMetric LINEAR_SRGB = new DistanceMetrics.Euclidean("linear-srgb-euclidean", DistanceMetrics::toLinearSrgb);
+    // squared euclidean distance in OKLab
+    DistanceMetric OKLAB = new DistanceMetrics.Euclidean("oklab-euclidean", DistanceMetrics::toOklab);
+    // CIE 1976 color difference, squared euclidean distance in CIELAB under D65
+    DistanceMetric CIELAB = new DistanceMetrics.Euclidean("cielab-de76", DistanceMetrics::toCielab);
+    // CIEDE2000 color difference in CIELAB under D65
+    DistanceMetric CIEDE2000 = new DistanceMetrics.Ciede2000();
+
+    // tells the metrics apart, e.g. in the file names of cached LUTs, so every metric needs a name of its own
+    String getName();
+
+    // the coordinates of a color in the metric's space into target[offset] to target[offset + 2], alpha is ignored
+    void convert(int rgb, float[] target, int offset);
+
+    // distances are only compared with each other, so a metric can leave out a final square root
+    float distance(float x1, float y1, float z1, float x2, float y2, float z2);
+
+    /**
+     * Whether {@link #distance} is the squared euclidean distance of the coordinates. The palette then searches
+     * with its vector and k-d tree searches instead of comparing every entry with distance().
+     */
+    default boolean isEuclidean() {
+        return false;
+    }
+
+}
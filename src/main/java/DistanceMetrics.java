@@ -0,0 +1,200 @@
+// the metrics DistanceMetric offers, all conversions start from the linear values ColorPalette uses
+// the constants are created in DistanceMetric itself, holding them here would initialize the two classes in a cycle
+
+final class DistanceMetrics {
+
+    // the D65 white point, for XYZ to CIELAB
+    private static final double WHITE_X = 0.95047;
+    private static final double WHITE_Y = 1.0;
+    private static final double WHITE_Z = 1.08883;
+    private static final double EPSILON = 216.0 / 24389.0;
+    private static final double KAPPA = 24389.0 / 27.0;
+    // 25^7, from the chroma correction of CIEDE2000
+    private static final double POW25_7 = 6103515625.0;
+    // the angles of the hue weighting function T and the hue rotation of CIEDE2000
+    private static final double COS_6 = Math.cos(Math.toRadians(6));
+    private static final double SIN_6 = Math.sin(Math.toRadians(6));
+    private static final double COS_30 = Math.cos(Math.toRadians(30));
+    private static final double SIN_30 = Math.sin(Math.toRadians(30));
+    private static final double COS_63 = Math.cos(Math.toRadians(63));
+    private static final double SIN_63 = Math.sin(Math.toRadians(63));
+    private static final double COS_150 = Math.cos(Math.toRadians(150));
+    private static final double COS_275 = Math.cos(Math.toRadians(275));
+    private static final double SIN_275 = Math.sin(Math.toRadians(275));
+
+    private DistanceMetrics() {}
+
+    static void toLinearSrgb(int rgb, float[] target, int offset) {
+        target[offset] = ColorPalette.toLinear((rgb >> 16) & 0xFF);
+        target[offset + 1] = ColorPalette.toLinear((rgb >> 8) & 0xFF);
+        target[offset + 2] = ColorPalette.toLinear(rgb & 0xFF);
+    }
+
+    // https://bottosson.github.io/posts/oklab/
+    static void toOklab(int rgb, float[] target, int offset) {
+        double red = ColorPalette.toLinear((rgb >> 16) & 0xFF);
+        double green = ColorPalette.toLinear((rgb >> 8) & 0xFF);
+        double blue = ColorPalette.toLinear(rgb & 0xFF);
+        double l = Math.cbrt((0.4122214708 * red) + (0.5363325363 * green) + (0.0514459929 * blue));
+        double m = Math.cbrt((0.2119034982 * red) + (0.6806995451 * green) + (0.1073969566 * blue));
+        double s = Math.cbrt((0.0883024619 * red) + (0.2817188376 * green) + (0.6299787005 * blue));
+        target[offset] = (float) ((0.2104542553 * l) + (0.7936177850 * m) - (0.0040720468 * s));
+        target[offset + 1] = (float) ((1.9779984951 * l) - (2.4285922050 * m) + (0.4505937099 * s));
+        target[offset + 2] = (float) ((0.0259040371 * l) + (0.7827717662 * m) - (0.8086757660 * s));
+    }
+
+    // http://www.brucelindbloom.com/index.html?Eqn_RGB_to_XYZ.html and Eqn_XYZ_to_Lab.html
+    static void toCielab(int rgb, float[] target, int offset) {
+        double red = ColorPalette.toLinear((rgb >> 16) & 0xFF);
+        double green = ColorPalette.toLinear((rgb >> 8) & 0xFF);
+        double blue = ColorPalette.toLinear(rgb & 0xFF);
+        double x = labCurve(((0.4124564 * red) + (0.3575761 * green) + (0.1804375 * blue)) / WHITE_X);
+        double y = labCurve(((0.2126729 * red) + (0.7151522 * green) + (0.0721750 * blue)) / WHITE_Y);
+        double z = labCurve(((0.0193339 * red) + (0.1191920 * green) + (0.9503041 * blue)) / WHITE_Z);
+        target[offset] = (float) ((116 * y) - 16);
+        target[offset + 1] = (float) (500 * (x - y));
+        target[offset + 2] = (float) (200 * (y - z));
+    }
+
+    private static double labCurve(double value) {
+        return value > EPSILON ? Math.cbrt(value) : ((KAPPA * value) + 16) / 116;
+    }
+
+    // G. Sharma, W. Wu, E. N. Dalal, "The CIEDE2000 Color-Difference Formula", with kL = kC = kH = 1, squared
+    static double ciede2000Squared(double l1, double a1, double b1, double l2, double a2, double b2) {
+        double chromaMean = (Math.sqrt((a1 * a1) + (b1 * b1)) + Math.sqrt((a2 * a2) + (b2 * b2))) / 2;
+        double chromaMean7 = pow7(chromaMean);
+        double g = 0.5 * (1 - Math.sqrt(chromaMean7 / (chromaMean7 + POW25_7)));
+        double a1Prime = (1 + g) * a1;
+        double a2Prime = (1 + g) * a2;
+        double c1 = Math.sqrt((a1Prime * a1Prime) + (b1 * b1));
+        double c2 = Math.sqrt((a2Prime * a2Prime) + (b2 * b2));
+        double deltaL = l2 - l1;
+        double deltaC = c2 - c1;
+        // 2 sqrt(C1'C2') sin(dh'/2) from the hue vectors, squared it is 2 (C1'C2' - a1'a2' - b1b2) and the sign is
+        // the direction from h1' to h2'. This and the mean hue below leave out 2 atan2(), 5 cos() and a sin()
+        double cross = (a1Prime * b2) - (b1 * a2Prime);
+        double deltaH = Math.copySign(Math.sqrt(Math.max(0, 2 * ((c1 * c2) - (a1Prime * a2Prime) - (b1 * b2)))), cross);
+        double lMean = (l1 + l2) / 2;
+        double cMean = (c1 + c2) / 2;
+        // the mean hue as a direction, a gray color has no hue and leaves the other one's
+        double hueX = c1 * c2 == 0 ? a1Prime + a2Prime : (a1Prime / c1) + (a2Prime / c2);
+        double hueY = c1 * c2 == 0 ? b1 + b2 : (b1 / c1) + (b2 / c2);
+        double hueLength = Math.sqrt((hueX * hueX) + (hueY * hueY));
+        double cos;
+        double sin;
+        if (hueLength > 1e-9) {
+            cos = hueX / hueLength;
+            sin = hueY / hueLength;
+        } else {
+            // two grays, or two hues exactly opposite each other whose mean the formula puts 90 degrees past the
+            // lower one, with a difference of +180 or -180 degrees depending on which one is first
+            double h1 = hueAngle(a1Prime, b1);
+            double h2 = hueAngle(a2Prime, b2);
+            double hMean = c1 * c2 == 0 ? 0 : Math.min(h1, h2) + 90;
+            double deltaHue = h2 - h1 > 180 ? h2 - h1 - 360 : h2 - h1 < -180 ? h2 - h1 + 360 : h2 - h1;
+            deltaH = 2 * Math.sqrt(c1 * c2) * Math.sin(Math.toRadians(deltaHue / 2));
+            cos = Math.cos(Math.toRadians(hMean));
+            sin = Math.sin(Math.toRadians(hMean));
+        }
+        // cos(n h) and sin(n h) from cos(h) and sin(h)
+        double cos2 = (cos * cos) - (sin * sin);
+        double sin2 = 2 * sin * cos;
+        double cos3 = cos * ((4 * cos * cos) - 3);
+        double sin3 = sin * (3 - (4 * sin * sin));
+        double cos4 = (cos2 * cos2) - (sin2 * sin2);
+        double sin4 = 2 * sin2 * cos2;
+        double t = 1 - (0.17 * ((cos * COS_30) + (sin * SIN_30))) + (0.24 * cos2)
+                + (0.32 * ((cos3 * COS_6) - (sin3 * SIN_6))) - (0.20 * ((cos4 * COS_63) + (sin4 * SIN_63)));
+        // 30 exp(-((h - 275) / 25)^2) is below 1e-14 degrees more than 150 degrees from 275, the rotation is left
+        // out there. The mean hue as an angle, 0 to 360, is only needed near 275 degrees
+        double rotation = 0;
+        if ((cos * COS_275) + (sin * SIN_275) > COS_150) {
+            double hueOffset = (hueAngle(cos, sin) - 275) / 25;
+            double deltaTheta = 30 * Math.exp(-(hueOffset * hueOffset));
+            double cMean7 = pow7(cMean);
+            rotation = -2 * Math.sqrt(cMean7 / (cMean7 + POW25_7)) * Math.sin(Math.toRadians(2 * deltaTheta));
+        }
+        double lightness = (lMean - 50) * (lMean - 50);
+        double termL = deltaL / (1 + ((0.015 * lightness) / Math.sqrt(20 + lightness)));
+        double termC = deltaC / (1 + (0.045 * cMean));
+        double termH = deltaH / (1 + (0.015 * cMean * t));
+        return (termL * termL) + (termC * termC) + (termH * termH) + (rotation * termC * termH);
+    }
+
+    // Math.pow() and Math.hypot() are far slower, this runs for every palette entry of every LUT entry
+    private static double pow7(double value) {
+        double square = value * value;
+        return square * square * square * value;
+    }
+
+    // in degrees, 0 to 360
+    private static double hueAngle(double a, double b) {
+        if (a == 0 && b == 0) {
+            return 0;
+        }
+        double angle = Math.toDegrees(Math.atan2(b, a));
+        return angle < 0 ? angle + 360 : angle;
+    }
+
+    // the expression and order of ColorPalette's own searches, so every search agrees with it
+    static final class Euclidean implements DistanceMetric {
+
+        private final String NAME;
+        private final Conversion CONVERSION;
+
+        Euclidean(String name, Conversion conversion) {
+            this.NAME = name;
+            this.CONVERSION = conversion;
+        }
+
+        public String getName() {
+            return NAME;
+        }
+
+        public void convert(int rgb, float[] target, int offset) {
+            CONVERSION.convert(rgb, target, offset);
+        }
+
+        public float distance(float x1, float y1, float z1, float x2, float y2, float z2) {
+            return ((x1 - x2) * (x1 - x2)) + ((y1 - y2) * (y1 - y2)) + ((z1 - z2) * (z1 - z2));
+        }
+
+        @Override
+        public boolean isEuclidean() {
+            return true;
+        }
+
+        @Override
+        public String toString() {
+            return NAME;
+        }
+
+    }
+
+    static final class Ciede2000 implements DistanceMetric {
+
+        public String getName() {
+            return "cielab-de2000";
+        }
+
+        public void convert(int rgb, float[] target, int offset) {
+            toCielab(rgb, target, offset);
+        }
+
+        public float distance(float x1, float y1, float z1, float x2, float y2, float z2) {
+            return (float) ciede2000Squared(x1, y1, z1, x2, y2, z2);
+        }
+
+        @Override
+        public String toString() {
+            return getName();
+        }
+
+    }
+
+    interface Conversion {
+        void convert(int rgb, float[] target, int offset);
+    }
+
+}
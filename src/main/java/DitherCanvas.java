@@ -0,0 +1,56 @@
+import java.awt.image.BufferedImage;
+
+/**
+ * Where an engine writes its colors: a {@link DitherTarget}'s pixels, or a canvas of the engine's own that is only
+ * allocated the first time a dither needs it. An indexed target gets the colors of a row in the own canvas first,
+ * then as indices. The engines delegate {@link ImageDither#setTarget(DitherTarget)} to this.
+ */
+final class DitherCanvas {
+
+    private final int WIDTH;
+    private final int HEIGHT;
+    private BufferedImage image;
+    private int[] pixels;
+    private BufferedImage ownImage;
+    private int[] ownPixels;
+    private DitherTarget indexedTarget;
+
+    DitherCanvas(int width, int height) {
+        this.WIDTH = width;
+        this.HEIGHT = height;
+    }
+
+    void setTarget(DitherTarget target) {
+        DitherTarget.checkSize(target, WIDTH, HEIGHT);
+        this.image = target == null ? ownImage : target.getImage();
+        this.pixels = target == null || target.isIndexed() ? ownPixels : target.getPixels();
+        this.indexedTarget = target != null && target.isIndexed() ? target : null;
+    }
+
+    // the array the colors go into, row after row. Call it before handing the work to other threads
+    int[] pixels() {
+        if (pixels == null) {
+            ownPixels = new int[WIDTH * HEIGHT];
+            ownImage = Images.wrap(ownPixels, WIDTH, HEIGHT);
+            pixels = ownPixels;
+            if (image == null) {
+                image = ownImage;
+            }
+        }
+        return pixels;
+    }
+
+    // what a dither returns
+    BufferedImage image() {
+        pixels();
+        return image;
+    }
+
+    // the colors from offset on are final, an indexed target stores them as indices
+    void store(int offset, int length) {
+        if (indexedTarget != null) {
+            indexedTarget.store(pixels, offset, length);
+        }
+    }
+
+}
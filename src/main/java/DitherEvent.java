@@ -0,0 +1,81 @@
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.FlightRecorderListener;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Recording;
+import jdk.jfr.RecordingState;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+// one dither() call of an engine, recorded by JDK Flight Recorder when a recording enables dither.Dither
+
+@Name("dither.Dither")
+@Label("Dither")
+@Category("Dithering")
+@Description("One frame dithered by an engine")
+@StackTrace(false)
+final class DitherEvent extends jdk.jfr.Event {
+
+    // whether any recording runs, the JIT does not reliably drop an event that escapes into a helper
+    private static volatile boolean recording = false;
+
+    static {
+        FlightRecorder.addListener(new FlightRecorderListener() {
+            @Override
+            public void recorderInitialized(FlightRecorder recorder) {
+                update(recorder);
+            }
+
+            @Override
+            public void recordingStateChanged(Recording changed) {
+                update(FlightRecorder.getFlightRecorder());
+            }
+        });
+    }
+
+    @Label("Engine")
+    String engine;
+
+    @Label("Width")
+    int width;
+
+    @Label("Height")
+    int height;
+
+    @Label("Kernel")
+    String kernel;
+
+    @Label("Threads")
+    int threads;
+
+    @Label("Wait Time")
+    @Description("Time the threads spent waiting for each other, summed over the threads")
+    @Timespan(Timespan.NANOSECONDS)
+    long waitTime;
+
+    // System.nanoTime() at the start for DitherMetrics, 0 while they are disabled. Transient, so JFR leaves it out
+    transient long started;
+
+    // a begun event, null while no recording runs and the metrics are disabled, so a frame allocates nothing
+    static DitherEvent start() {
+        long started = DitherMetrics.start();
+        if (!recording && started == 0) {
+            return null;
+        }
+        DitherEvent event = new DitherEvent();
+        event.started = started;
+        event.begin();
+        return event;
+    }
+
+    private static void update(FlightRecorder recorder) {
+        boolean running = false;
+        for (Recording other : recorder.getRecordings()) {
+            running |= other.getState() == RecordingState.RUNNING;
+        }
+        recording = running;
+    }
+
+}
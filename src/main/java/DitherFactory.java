@@ -0,0 +1,8 @@
+// creates an ImageDither for the given size, e.g. (width, height) -> new Stucki(width, height, lut)
+
+@FunctionalInterface
+public interface DitherFactory {
+
+    ImageDither create(int width, int height);
+
+}
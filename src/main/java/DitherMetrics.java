@@ -0,0 +1,271 @@
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.InstanceNotFoundException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.lang.ref.Cleaner;
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters of every engine and LUT in the JVM, registered over JMX as {@value #OBJECT_NAME} by {@link #enable()}
+ * or by starting the JVM with {@code -Ddither.metrics=true}. While they are disabled, which is the default, and no
+ * recording runs, an engine reads two volatile flags per frame and allocates nothing.
+ * <p>
+ * The JDK Flight Recorder events {@code dither.Dither} and {@code dither.LUTBuild} do not depend on this, they are
+ * recorded whenever a recording enables them, e.g. {@code jcmd <pid> JFR.start}.
+ */
+public final class DitherMetrics implements DitherMetricsMBean {
+
+    public static final String OBJECT_NAME = "dither:type=DitherMetrics";
+
+    // frames per second are averaged over this many whole seconds
+    private static final int RATE_SECONDS = 5;
+    // 8 buckets per power of two, a percentile is at most an eighth above the real one
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final long NANOS_PER_SECOND = 1_000_000_000L;
+
+    // engines that other engines call, e.g. the tiles of a TiledDither, are not frames of their own
+    private static final ThreadLocal<int[]> INNER_CALLS = ThreadLocal.withInitial(() -> new int[1]);
+    private static final DitherMetrics INSTANCE = new DitherMetrics();
+    private static volatile boolean enabled = false;
+
+    static {
+        if (Boolean.getBoolean("dither.metrics")) {
+            enable();
+        }
+    }
+
+    private final long[] LATENCIES = new long[(64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS];
+    // frames per second of System.nanoTime(), one slot per second and one more for the second in progress
+    private final long[] SECONDS = new long[RATE_SECONDS + 1];
+    private final long[] SECOND_FRAMES = new long[RATE_SECONDS + 1];
+    private final LongAdder LUT_BYTES = new LongAdder();
+    private final LongAdder LUT_BUILDS = new LongAdder();
+    private long frames;
+    private long pixels;
+    private long maxLatency;
+    private long parallelWaitNanos;
+    private long parallelWaits;
+
+    private DitherMetrics() {
+        Arrays.fill(SECONDS, Long.MIN_VALUE);
+    }
+
+    public static DitherMetrics getInstance() {
+        return INSTANCE;
+    }
+
+    // starts counting and registers the MBean with the platform MBean server
+    public static synchronized void enable() {
+        if (enabled) {
+            return;
+        }
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            server.registerMBean(INSTANCE, new ObjectName(OBJECT_NAME));
+        } catch (InstanceAlreadyExistsException e) {
+            // registered by another class loader's copy, that one is the one JMX shows
+        } catch (JMException e) {
+            throw new IllegalStateException("Could not register " + OBJECT_NAME + ".", e);
+        }
+        enabled = true;
+    }
+
+    // stops counting and unregisters the MBean, the counters keep their values
+    public static synchronized void disable() {
+        if (!enabled) {
+            return;
+        }
+        enabled = false;
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(new ObjectName(OBJECT_NAME));
+        } catch (InstanceNotFoundException e) {
+            // unregistered through JMX already
+        } catch (JMException e) {
+            throw new IllegalStateException("Could not unregister " + OBJECT_NAME + ".", e);
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public synchronized long getFramesProcessed() {
+        return frames;
+    }
+
+    public synchronized long getPixelsProcessed() {
+        return pixels;
+    }
+
+    public synchronized double getFramesPerSecond() {
+        long second = Math.floorDiv(System.nanoTime(), NANOS_PER_SECOND);
+        long total = 0;
+        for (int i = 0; i < SECONDS.length; i++) {
+            // the second in progress is left out, it is not over yet
+            if (SECONDS[i] < second && SECONDS[i] >= second - RATE_SECONDS) {
+                total += SECOND_FRAMES[i];
+            }
+        }
+        return total / (double) RATE_SECONDS;
+    }
+
+    public double getLatencyP50Millis() {
+        return getLatencyMillis(0.5);
+    }
+
+    public double getLatencyP90Millis() {
+        return getLatencyMillis(0.9);
+    }
+
+    public double getLatencyP99Millis() {
+        return getLatencyMillis(0.99);
+    }
+
+    public synchronized double getLatencyMaxMillis() {
+        return maxLatency / 1e6;
+    }
+
+    // the time a dither() call took, percentile from 0 to 1, 0 before the first frame
+    public synchronized double getLatencyMillis(double percentile) {
+        if (percentile < 0 || percentile > 1) throw new IllegalArgumentException("Percentile must be between 0 and 1. (" + percentile + ")");
+        if (frames == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile * frames));
+        long seen = 0;
+        for (int i = 0; i < LATENCIES.length; i++) {
+            seen += LATENCIES[i];
+            if (seen >= rank) {
+                return Math.min(maxLatency, upperBound(i)) / 1e6;
+            }
+        }
+        return maxLatency / 1e6;
+    }
+
+    public long getLUTBytesInUse() {
+        return LUT_BYTES.sum();
+    }
+
+    public long getLUTBuilds() {
+        return LUT_BUILDS.sum();
+    }
+
+    public synchronized double getParallelWaitMillis() {
+        return parallelWaitNanos / 1e6;
+    }
+
+    public synchronized long getParallelWaits() {
+        return parallelWaits;
+    }
+
+    public synchronized void reset() {
+        Arrays.fill(LATENCIES, 0);
+        Arrays.fill(SECONDS, Long.MIN_VALUE);
+        Arrays.fill(SECOND_FRAMES, 0);
+        LUT_BUILDS.reset();
+        frames = 0;
+        pixels = 0;
+        maxLatency = 0;
+        parallelWaitNanos = 0;
+        parallelWaits = 0;
+    }
+
+    // the start of a frame for dithered(), 0 while disabled
+    static long start() {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Ends a frame an engine started with {@link DitherEvent#start()}: commits the event if a recording wants it
+     * and counts the frame if the metrics were enabled when it started.
+     *
+     * @param event null if nothing recorded the frame
+     * @param kernel may be null
+     * @param waitNanos time the engine's threads waited for each other, 0 for a sequential engine
+     */
+    static void dithered(DitherEvent event, Object engine, int width, int height, DiffusionKernel kernel, int threads, long waitNanos, long waits) {
+        if (event == null) {
+            return;
+        }
+        if (event.shouldCommit()) {
+            event.engine = engine.getClass().getSimpleName();
+            event.width = width;
+            event.height = height;
+            event.kernel = kernel == null ? null : kernel.getName();
+            event.threads = threads;
+            event.waitTime = waitNanos;
+            event.commit();
+        }
+        if (event.started != 0 && INNER_CALLS.get()[0] == 0) {
+            INSTANCE.frame(System.nanoTime() - event.started, (long) width * height, waitNanos, waits);
+        }
+    }
+
+    // around the calls of an engine into other engines
+    static void enterInner() {
+        INNER_CALLS.get()[0]++;
+    }
+
+    static void exitInner() {
+        INNER_CALLS.get()[0]--;
+    }
+
+    static void lutBuilt() {
+        if (enabled) {
+            INSTANCE.LUT_BUILDS.increment();
+        }
+    }
+
+    // counts bytes of LUT memory until owner is garbage collected
+    static void lutAllocated(Object owner, long bytes) {
+        if (enabled) {
+            INSTANCE.LUT_BYTES.add(bytes);
+            LUTBytes.CLEANER.register(owner, () -> INSTANCE.LUT_BYTES.add(-bytes));
+        }
+    }
+
+    private synchronized void frame(long latency, long framePixels, long waitNanos, long waits) {
+        frames++;
+        pixels += framePixels;
+        maxLatency = Math.max(maxLatency, latency);
+        LATENCIES[bucket(latency)]++;
+        parallelWaitNanos += waitNanos;
+        parallelWaits += waits;
+        long second = Math.floorDiv(System.nanoTime(), NANOS_PER_SECOND);
+        int slot = (int) Math.floorMod(second, (long) SECONDS.length);
+        if (SECONDS[slot] != second) {
+            SECONDS[slot] = second;
+            SECOND_FRAMES[slot] = 0;
+        }
+        SECOND_FRAMES[slot]++;
+    }
+
+    // the values below SUB_BUCKETS get a bucket each, above that every power of two is split into SUB_BUCKETS
+    private static int bucket(long nanos) {
+        if (nanos < SUB_BUCKETS) {
+            return (int) Math.max(0, nanos);
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+        int sub = (int) (nanos >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return ((exponent - SUB_BUCKET_BITS + 1) << SUB_BUCKET_BITS) + sub;
+    }
+
+    private static long upperBound(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = (bucket >> SUB_BUCKET_BITS) - 1;
+        long lower = (long) (SUB_BUCKETS + (bucket & (SUB_BUCKETS - 1))) << shift;
+        return lower + (1L << shift) - 1;
+    }
+
+    // the cleaner's thread is only started once a LUT is counted
+    private static final class LUTBytes {
+        private static final Cleaner CLEANER = Cleaner.create();
+    }
+
+}
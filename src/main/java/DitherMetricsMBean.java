@@ -0,0 +1,35 @@
+// the attributes DitherMetrics shows over JMX, e.g. in JConsole or VisualVM under dither:type=DitherMetrics
+
+public interface DitherMetricsMBean {
+
+    boolean isEnabled();
+
+    long getFramesProcessed();
+
+    long getPixelsProcessed();
+
+    // averaged over the last few whole seconds
+    double getFramesPerSecond();
+
+    double getLatencyP50Millis();
+
+    double getLatencyP90Millis();
+
+    double getLatencyP99Millis();
+
+    double getLatencyMaxMillis();
+
+    // the LUTs created while the metrics are enabled and not collected yet, mapped ones included
+    long getLUTBytesInUse();
+
+    long getLUTBuilds();
+
+    // ParallelFSD rows waiting for the row above, summed over the threads
+    double getParallelWaitMillis();
+
+    long getParallelWaits();
+
+    // sets the counters back to 0, the LUT memory in use stays
+    void reset();
+
+}
@@ -0,0 +1,160 @@
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.IndexColorModel;
+import java.awt.image.Raster;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+
+/**
+ * Where an engine puts its result, set with {@link ImageDither#setTarget(DitherTarget)}. The engine writes into
+ * a caller's {@code int[]} or {@code TYPE_INT_ARGB} image directly. An indexed target holds a byte per pixel, the
+ * position of its color in the palette, in a {@code TYPE_BYTE_INDEXED} image that image encoders take as it is.
+ */
+public final class DitherTarget {
+
+    public static final int MAX_INDEXED_COLORS = 256;
+
+    private final int WIDTH;
+    private final int HEIGHT;
+    private final BufferedImage IMAGE;
+    private final int[] PIXELS;
+    private final byte[] INDICES;
+    // open addressing from a palette color to its index + 1, 0 marks a free slot
+    private final int[] KEYS;
+    private final int[] SLOTS;
+    private final int MASK;
+
+    private DitherTarget(int width, int height, BufferedImage image, int[] pixels, byte[] indices, int[] colors) {
+        this.WIDTH = width;
+        this.HEIGHT = height;
+        this.IMAGE = image;
+        this.PIXELS = pixels;
+        this.INDICES = indices;
+        if (colors == null) {
+            this.KEYS = null;
+            this.SLOTS = null;
+            this.MASK = 0;
+        } else {
+            // at most a quarter full, so a lookup almost never probes twice
+            int size = Integer.highestOneBit(colors.length * 4 - 1) << 1;
+            this.KEYS = new int[size];
+            this.SLOTS = new int[size];
+            this.MASK = size - 1;
+            for (int i = 0; i < colors.length; i++) {
+                int slot = hash(colors[i]) & MASK;
+                while (SLOTS[slot] != 0 && KEYS[slot] != colors[i]) {
+                    slot = (slot + 1) & MASK;
+                }
+                if (SLOTS[slot] == 0) {
+                    KEYS[slot] = colors[i];
+                    SLOTS[slot] = i + 1;
+                }
+            }
+        }
+    }
+
+    // the caller's array, row after row without gaps
+    public static DitherTarget pixels(int[] pixels, int width, int height) {
+        if (pixels.length < width * height) throw new IllegalArgumentException("Array is too small for a " + width + "x" + height + " image. (" + pixels.length + ")");
+        return new DitherTarget(width, height, Images.wrap(pixels, width, height), pixels, null, null);
+    }
+
+    // a TYPE_INT_ARGB image the engine writes into through its DataBufferInt, not a subimage
+    public static DitherTarget image(BufferedImage image) {
+        if (image.getType() != BufferedImage.TYPE_INT_ARGB) throw new IllegalArgumentException("Only TYPE_INT_ARGB images can be written directly. (" + image.getType() + ")");
+        WritableRaster raster = image.getRaster();
+        DataBuffer buffer = raster.getDataBuffer();
+        if (raster.getParent() != null || !(raster.getSampleModel() instanceof SinglePixelPackedSampleModel)
+                || ((SinglePixelPackedSampleModel) raster.getSampleModel()).getScanlineStride() != image.getWidth() || buffer.getOffset() != 0) {
+            throw new IllegalArgumentException("The image has to own its whole pixel array, it can not be a subimage.");
+        }
+        return new DitherTarget(image.getWidth(), image.getHeight(), image, ((DataBufferInt) buffer).getData(), null, null);
+    }
+
+    // palette indices in a new array, colors are the palette in index order, e.g. ColorPalette.getColors()
+    public static DitherTarget indexed(int[] colors, int width, int height) {
+        return indexed(new byte[width * height], colors, width, height);
+    }
+
+    public static DitherTarget indexed(byte[] indices, int[] colors, int width, int height) {
+        if (colors.length == 0 || colors.length > MAX_INDEXED_COLORS) {
+            throw new IllegalArgumentException("An indexed target holds 1 to " + MAX_INDEXED_COLORS + " colors. (" + colors.length + ")");
+        }
+        if (indices.length < width * height) throw new IllegalArgumentException("Array is too small for a " + width + "x" + height + " image. (" + indices.length + ")");
+        byte[] reds = new byte[colors.length];
+        byte[] greens = new byte[colors.length];
+        byte[] blues = new byte[colors.length];
+        for (int i = 0; i < colors.length; i++) {
+            reds[i] = (byte) (colors[i] >> 16);
+            greens[i] = (byte) (colors[i] >> 8);
+            blues[i] = (byte) colors[i];
+        }
+        IndexColorModel colorModel = new IndexColorModel(8, colors.length, reds, greens, blues);
+        WritableRaster raster = Raster.createInterleavedRaster(new DataBufferByte(indices, width * height), width, height, width, 1, new int[]{0}, null);
+        BufferedImage image = new BufferedImage(colorModel, raster, false, null);
+        return new DitherTarget(width, height, image, null, indices, colors.clone());
+    }
+
+    public int getWidth() {
+        return WIDTH;
+    }
+
+    public int getHeight() {
+        return HEIGHT;
+    }
+
+    public BufferedImage getImage() {
+        return IMAGE;
+    }
+
+    // null for an indexed target
+    public int[] getPixels() {
+        return PIXELS;
+    }
+
+    // null unless the target is indexed
+    public byte[] getIndices() {
+        return INDICES;
+    }
+
+    public boolean isIndexed() {
+        return INDICES != null;
+    }
+
+    // the index of a palette color, a color that is not in the palette is an error in how the engine was set up
+    int indexOf(int color) {
+        int slot = hash(color) & MASK;
+        while (true) {
+            int index = SLOTS[slot];
+            if (index == 0) {
+                throw new IllegalStateException(String.format("Color not present in the target's palette. (%d)", color));
+            }
+            if (KEYS[slot] == color) {
+                return index - 1;
+            }
+            slot = (slot + 1) & MASK;
+        }
+    }
+
+    // turns length colors from offset on into indices at the same positions
+    void store(int[] colors, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            INDICES[i] = (byte) indexOf(colors[i]);
+        }
+    }
+
+    private static int hash(int color) {
+        int hash = color * 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+
+    // the engines check the target against their own size
+    static void checkSize(DitherTarget target, int width, int height) {
+        if (target != null && (target.WIDTH != width || target.HEIGHT != height)) {
+            throw new IllegalArgumentException("Target is " + target.WIDTH + "x" + target.HEIGHT + ", expected " + width + "x" + height + ".");
+        }
+    }
+
+}
@@ -0,0 +1,191 @@
+import java.awt.image.BufferedImage;
+import java.nio.ByteBuffer;
+
+/**
+ * Dithers with any {@link DiffusionKernel} in a single pass. Instead of writing the error back into the caller's
+ * raster, the pixels that still receive error live in a ring of working rows that is only as deep as the kernel,
+ * so the input is left untouched. The rows are padded on both sides, which lets the error be spread without
+ * checking the image bounds. They hold one plane per channel, so spreading the error does not unpack and repack
+ * every neighbour; a pixel is only packed to look up its nearest color.
+ */
+public class ErrorDiffusionDither implements ImageDither {
+
+    private final int WIDTH;
+    private final int HEIGHT;
+    private final int[] LUT;
+    private final ColorLookup LOOKUP;
+    private final DiffusionKernel KERNEL;
+    private final int ROWS;
+    private final int PADDING;
+    private final int STRIDE;
+    // the working rows, one plane per channel
+    private final int[] RED;
+    private final int[] GREEN;
+    private final int[] BLUE;
+    private final int[] ROW_BUFFER;
+    private final byte[] BYTE_BUFFER;
+    private final int[] TARGETS;
+    private final DitherCanvas CANVAS;
+
+    public ErrorDiffusionDither(int width, int height, int[] lut, DiffusionKernel kernel) {
+        this(width, height, lut, null, kernel);
+        if (lut.length < 16777216) throw new IllegalArgumentException("LUT have atleast 16777216 elements.");
+    }
+
+    // a ColorPalette, an IndexedLUT or any other lookup
+    public ErrorDiffusionDither(int width, int height, ColorLookup lookup, DiffusionKernel kernel) {
+        this(width, height, null, lookup, kernel);
+    }
+
+    private ErrorDiffusionDither(int width, int height, int[] lut, ColorLookup lookup, DiffusionKernel kernel) {
+        this.WIDTH = width;
+        this.HEIGHT = height;
+        this.LUT = lut;
+        this.LOOKUP = lookup;
+        this.KERNEL = kernel;
+        this.ROWS = kernel.getRows();
+        this.PADDING = kernel.getLeft();
+        this.STRIDE = kernel.getLeft() + width + kernel.getRight();
+        this.RED = new int[ROWS * STRIDE];
+        this.GREEN = new int[ROWS * STRIDE];
+        this.BLUE = new int[ROWS * STRIDE];
+        this.ROW_BUFFER = new int[width];
+        this.BYTE_BUFFER = new byte[width * 3];
+        this.TARGETS = new int[kernel.getLength()];
+        this.CANVAS = new DitherCanvas(width, height);
+    }
+
+    public DiffusionKernel getKernel() {
+        return KERNEL;
+    }
+
+    public int getWidth() {
+        return WIDTH;
+    }
+
+    public int getHeight() {
+        return HEIGHT;
+    }
+
+    public void setTarget(DitherTarget target) {
+        CANVAS.setTarget(target);
+    }
+
+    public BufferedImage dither(int[] raster) {
+        DitherEvent event = DitherEvent.start();
+        for (int y = 0; y < ROWS - 1 && y < HEIGHT; y++) {
+            loadRow(raster, y * WIDTH, y);
+        }
+        for (int y = 0; y < HEIGHT; y++) {
+            int nextRow = y + ROWS - 1;
+            if (nextRow < HEIGHT) {
+                loadRow(raster, nextRow * WIDTH, nextRow);
+            }
+            ditherRow(y);
+        }
+        return finish(event);
+    }
+
+    public BufferedImage dither(byte[] raster) {
+        DitherEvent event = DitherEvent.start();
+        for (int y = 0; y < ROWS - 1 && y < HEIGHT; y++) {
+            loadRow(raster, y);
+        }
+        for (int y = 0; y < HEIGHT; y++) {
+            int nextRow = y + ROWS - 1;
+            if (nextRow < HEIGHT) {
+                loadRow(raster, nextRow);
+            }
+            ditherRow(y);
+        }
+        return finish(event);
+    }
+
+    // rows are pulled from the image as they are needed instead of copying the whole image up front
+    public BufferedImage dither(BufferedImage image) {
+        DitherEvent event = DitherEvent.start();
+        for (int y = 0; y < ROWS - 1 && y < HEIGHT; y++) {
+            Images.readRow(image, y, WIDTH, ROW_BUFFER, BYTE_BUFFER);
+            loadRow(ROW_BUFFER, 0, y);
+        }
+        for (int y = 0; y < HEIGHT; y++) {
+            int nextRow = y + ROWS - 1;
+            if (nextRow < HEIGHT) {
+                Images.readRow(image, nextRow, WIDTH, ROW_BUFFER, BYTE_BUFFER);
+                loadRow(ROW_BUFFER, 0, nextRow);
+            }
+            ditherRow(y);
+        }
+        return finish(event);
+    }
+
+    public BufferedImage dither(ByteBuffer buffer, PixelFormat format, int offset, int stride) {
+        DitherEvent event = DitherEvent.start();
+        Images.checkBuffer(buffer, format, offset, stride, WIDTH, HEIGHT);
+        for (int y = 0; y < ROWS - 1 && y < HEIGHT; y++) {
+            Images.readRow(buffer, format, offset + (y * stride), WIDTH, ROW_BUFFER, 0);
+            loadRow(ROW_BUFFER, 0, y);
+        }
+        for (int y = 0; y < HEIGHT; y++) {
+            int nextRow = y + ROWS - 1;
+            if (nextRow < HEIGHT) {
+                Images.readRow(buffer, format, offset + (nextRow * stride), WIDTH, ROW_BUFFER, 0);
+                loadRow(ROW_BUFFER, 0, nextRow);
+            }
+            ditherRow(y);
+        }
+        return finish(event);
+    }
+
+    private BufferedImage finish(DitherEvent event) {
+        DitherMetrics.dithered(event, this, WIDTH, HEIGHT, KERNEL, 1, 0, 0);
+        return CANVAS.image();
+    }
+
+    // the alpha channel is dropped, the pixels are split into the planes
+    private void loadRow(int[] pixels, int offset, int y) {
+        int rowStart = ((y % ROWS) * STRIDE) + PADDING;
+        for (int x = 0; x < WIDTH; x++) {
+            int pixel = pixels[offset + x];
+            RED[rowStart + x] = (pixel >> 16) & 0xFF;
+            GREEN[rowStart + x] = (pixel >> 8) & 0xFF;
+            BLUE[rowStart + x] = pixel & 0xFF;
+        }
+    }
+
+    // byte rasters are in BGR order
+    private void loadRow(byte[] raster, int y) {
+        int rowStart = ((y % ROWS) * STRIDE) + PADDING;
+        int bufferOffset = y * WIDTH * 3;
+        for (int x = 0; x < WIDTH; x++) {
+            RED[rowStart + x] = raster[bufferOffset + 2] & 0xFF;
+            GREEN[rowStart + x] = raster[bufferOffset + 1] & 0xFF;
+            BLUE[rowStart + x] = raster[bufferOffset] & 0xFF;
+            bufferOffset += 3;
+        }
+    }
+
+    private void ditherRow(int y) {
+        KERNEL.targets(TARGETS, y, ROWS, STRIDE, PADDING);
+        int rowStart = ((y % ROWS) * STRIDE) + PADDING;
+        int canvasOffset = y * WIDTH;
+        int[] canvas = CANVAS.pixels();
+        for (int x = 0; x < WIDTH; x++) {
+            int red = RED[rowStart + x];
+            int green = GREEN[rowStart + x];
+            int blue = BLUE[rowStart + x];
+            // packed again only for the lookup, the LUT is indexed by the complement of an opaque color
+            int currentColor = 0xFF000000 | (red << 16) | (green << 8) | blue;
+            int nearestColor = LUT == null ? LOOKUP.findNearestColorRGB(currentColor) : LUT[~currentColor & 0xFFFFFF];
+            canvas[canvasOffset + x] = nearestColor;
+            int quantizationErrorR = red - ((nearestColor >> 16) & 0xFF);
+            int quantizationErrorG = green - ((nearestColor >> 8) & 0xFF);
+            int quantizationErrorB = blue - (nearestColor & 0xFF);
+            if (quantizationErrorR != 0 || quantizationErrorG != 0 || quantizationErrorB != 0) {
+                KERNEL.spread(RED, GREEN, BLUE, TARGETS, x, quantizationErrorR, quantizationErrorG, quantizationErrorB);
+            }
+        }
+        CANVAS.store(canvasOffset, WIDTH);
+    }
+
+}
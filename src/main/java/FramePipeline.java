@@ -0,0 +1,288 @@
+import org.bytedeco.ffmpeg.global.avutil;
+import org.bytedeco.javacv.FFmpegFrameGrabber;
+import org.bytedeco.javacv.Frame;
+import org.bytedeco.javacv.FrameGrabber;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Grabs, dithers and displays frames on three threads of their own, so a frame is dithered while the next one is
+ * grabbed and the previous one is shown, and the frame rate is that of the slowest stage instead of the sum of all.
+ * The stages hand frames over through bounded queues, the buffers are taken from pools and go back to them once
+ * a frame is shown or dropped, nothing is allocated per frame.
+ * <p>
+ * The grabber is set up to deliver BGR frames that FFmpeg already scaled to the pipeline's size, which replaces
+ * converting to a BufferedImage and redrawing it. Because the grabber reuses its frame, the capture stage copies
+ * it out right away, that copy is the conversion. Any FFmpeg source works, a desktop capture as well as a file.
+ */
+public class FramePipeline implements AutoCloseable {
+
+    // what a stage does when the queue to the next one is full
+    public enum OverflowPolicy {
+        // wait, every frame is shown, the source is slowed down to the slowest stage
+        BLOCK,
+        // throw the oldest queued frame away, the newest frames are shown with the least latency
+        DROP_OLDEST
+    }
+
+    private static final long POLL_MILLIS = 50;
+
+    private final int WIDTH;
+    private final int HEIGHT;
+    private final FFmpegFrameGrabber GRABBER;
+    private final ImageDither DITHER;
+    private final Consumer<BufferedImage> SINK;
+    private final OverflowPolicy POLICY;
+    private final ArrayBlockingQueue<byte[]> FRAME_POOL;
+    private final ArrayBlockingQueue<BufferedImage> IMAGE_POOL;
+    private final Channel<byte[]> FRAMES;
+    private final Channel<BufferedImage> IMAGES;
+    private final AtomicLong CAPTURED = new AtomicLong();
+    private final AtomicLong DROPPED = new AtomicLong();
+    private final AtomicLong DISPLAYED = new AtomicLong();
+    private Thread[] threads;
+    private volatile boolean running;
+    private volatile Throwable failure;
+
+    /**
+     * @param sink          shows a dithered frame, it must be done with the image when it returns
+     * @param queueCapacity frames that may wait between two stages
+     */
+    public FramePipeline(FFmpegFrameGrabber grabber, int width, int height, ImageDither dither, Consumer<BufferedImage> sink,
+                         int queueCapacity, OverflowPolicy policy) {
+        if (queueCapacity <= 0) throw new IllegalArgumentException("Queue capacity must be at least 1. (" + queueCapacity + ")");
+        this.WIDTH = width;
+        this.HEIGHT = height;
+        this.GRABBER = grabber;
+        this.DITHER = dither;
+        this.SINK = sink;
+        this.POLICY = policy;
+        // the queue, plus the buffer the producer fills and the one the consumer works on
+        int poolSize = queueCapacity + 2;
+        this.FRAME_POOL = new ArrayBlockingQueue<>(poolSize);
+        this.IMAGE_POOL = new ArrayBlockingQueue<>(poolSize);
+        for (int i = 0; i < poolSize; i++) {
+            FRAME_POOL.add(new byte[width * height * 3]);
+            IMAGE_POOL.add(new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB));
+        }
+        this.FRAMES = new Channel<>(queueCapacity, FRAME_POOL);
+        this.IMAGES = new Channel<>(queueCapacity, IMAGE_POOL);
+    }
+
+    // starts the grabber and the stages
+    public synchronized void start() throws FrameGrabber.Exception {
+        if (threads != null) throw new IllegalStateException("The pipeline was already started.");
+        GRABBER.setImageWidth(WIDTH);
+        GRABBER.setImageHeight(HEIGHT);
+        GRABBER.setPixelFormat(avutil.AV_PIX_FMT_BGR24);
+        GRABBER.start();
+        running = true;
+        threads = new Thread[]{
+                new Thread(this::capture, "FramePipeline-capture"),
+                new Thread(this::dither, "FramePipeline-dither"),
+                new Thread(this::display, "FramePipeline-display")
+        };
+        for (Thread thread : threads) {
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Waits until the source ran out of frames and every frame went through, or until the pipeline is closed.
+     * Rethrows what made a stage fail.
+     */
+    public void await() throws InterruptedException {
+        Thread[] started;
+        synchronized (this) {
+            started = threads;
+        }
+        if (started == null) throw new IllegalStateException("The pipeline was not started.");
+        for (Thread thread : started) {
+            thread.join();
+        }
+        Throwable error = failure;
+        if (error != null) {
+            throw error instanceof RuntimeException ? (RuntimeException) error : new IllegalStateException(error);
+        }
+    }
+
+    // stops the stages where they are and releases the grabber
+    @Override
+    public synchronized void close() throws FrameGrabber.Exception {
+        running = false;
+        if (threads != null) {
+            for (Thread thread : threads) {
+                thread.interrupt();
+            }
+            for (Thread thread : threads) {
+                try {
+                    thread.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+        GRABBER.stop();
+        GRABBER.release();
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    public long getCapturedFrames() {
+        return CAPTURED.get();
+    }
+
+    // frames thrown away by OverflowPolicy.DROP_OLDEST
+    public long getDroppedFrames() {
+        return DROPPED.get();
+    }
+
+    public long getDisplayedFrames() {
+        return DISPLAYED.get();
+    }
+
+    private void capture() {
+        try {
+            Frame frame;
+            while (running && (frame = GRABBER.grabImage()) != null) {
+                byte[] buffer = FRAME_POOL.take();
+                copyFrame(frame, buffer);
+                CAPTURED.incrementAndGet();
+                FRAMES.put(buffer);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Throwable t) {
+            fail(t);
+        } finally {
+            FRAMES.close();
+        }
+    }
+
+    private void dither() {
+        try {
+            byte[] frame;
+            while ((frame = FRAMES.take()) != null) {
+                BufferedImage result = DITHER.dither(frame);
+                FRAME_POOL.add(frame);
+                BufferedImage output = IMAGE_POOL.take();
+                copyImage(result, output);
+                IMAGES.put(output);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Throwable t) {
+            fail(t);
+        } finally {
+            IMAGES.close();
+        }
+    }
+
+    private void display() {
+        try {
+            BufferedImage image;
+            while ((image = IMAGES.take()) != null) {
+                SINK.accept(image);
+                DISPLAYED.incrementAndGet();
+                IMAGE_POOL.add(image);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Throwable t) {
+            fail(t);
+        } finally {
+            running = false;
+        }
+    }
+
+    // rows of the frame can be padded, imageStride is the distance between them in bytes
+    private void copyFrame(Frame frame, byte[] buffer) {
+        if (frame.imageWidth != WIDTH || frame.imageHeight != HEIGHT || frame.imageChannels != 3) {
+            throw new IllegalStateException("Expected " + WIDTH + "x" + HEIGHT + " BGR frames. (" + frame.imageWidth + "x" + frame.imageHeight + ", " + frame.imageChannels + " channels)");
+        }
+        ByteBuffer data = (ByteBuffer) frame.image[0];
+        int rowLength = WIDTH * 3;
+        for (int y = 0; y < HEIGHT; y++) {
+            data.get(y * frame.imageStride, buffer, y * rowLength, rowLength);
+        }
+    }
+
+    // a dither reuses the image it returns, the frame has to be copied out before the next one is dithered
+    private void copyImage(BufferedImage source, BufferedImage target) {
+        if (source.getRaster().getDataBuffer() instanceof DataBufferInt && source.getType() == BufferedImage.TYPE_INT_ARGB) {
+            int[] sourcePixels = ((DataBufferInt) source.getRaster().getDataBuffer()).getData();
+            int[] targetPixels = ((DataBufferInt) target.getRaster().getDataBuffer()).getData();
+            System.arraycopy(sourcePixels, 0, targetPixels, 0, WIDTH * HEIGHT);
+        } else {
+            source.copyData(target.getRaster());
+        }
+    }
+
+    private void fail(Throwable t) {
+        if (failure == null) {
+            failure = t;
+        }
+        running = false;
+        for (Thread thread : threads) {
+            if (thread != Thread.currentThread()) {
+                thread.interrupt();
+            }
+        }
+    }
+
+    // a bounded queue between two stages, applies the overflow policy
+    private final class Channel<T> {
+
+        private final ArrayBlockingQueue<T> QUEUE;
+        private final ArrayBlockingQueue<T> POOL;
+        private volatile boolean closed;
+
+        private Channel(int capacity, ArrayBlockingQueue<T> pool) {
+            this.QUEUE = new ArrayBlockingQueue<>(capacity);
+            this.POOL = pool;
+        }
+
+        private void put(T item) throws InterruptedException {
+            if (POLICY == OverflowPolicy.BLOCK) {
+                QUEUE.put(item);
+                return;
+            }
+            while (!QUEUE.offer(item)) {
+                T oldest = QUEUE.poll();
+                if (oldest != null) {
+                    POOL.add(oldest);
+                    DROPPED.incrementAndGet();
+                }
+            }
+        }
+
+        // null once the producer is done and everything was taken
+        private T take() throws InterruptedException {
+            while (true) {
+                T item = QUEUE.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                if (item != null) {
+                    return item;
+                }
+                if (closed && QUEUE.isEmpty()) {
+                    return null;
+                }
+            }
+        }
+
+        private void close() {
+            closed = true;
+        }
+
+    }
+
+}
@@ -0,0 +1,40 @@
+import org.bytedeco.javacv.Frame;
+
+import java.awt.image.BufferedImage;
+import java.nio.ByteBuffer;
+
+/**
+ * Feeds JavaCV frames to any {@link ImageDither} without copying them: the dither reads the frame's image buffer
+ * in place. The frame has to be the dither's size, with 8-bit channels, as FFmpegFrameGrabber delivers it after
+ * {@code setImageWidth}, {@code setImageHeight} and, for four channels, {@code setPixelFormat(AV_PIX_FMT_BGRA)}.
+ */
+public final class Frames {
+
+    private Frames() {}
+
+    // 3 channels are read as BGR and 4 as BGRA, the layouts FFmpeg and OpenCV use
+    public static BufferedImage dither(ImageDither dither, Frame frame) {
+        if (frame.imageChannels == 3) {
+            return dither(dither, frame, PixelFormat.BGR);
+        } else if (frame.imageChannels == 4) {
+            return dither(dither, frame, PixelFormat.BGRA);
+        }
+        throw new IllegalArgumentException("Only frames with 3 or 4 channels can be dithered. (" + frame.imageChannels + ")");
+    }
+
+    public static BufferedImage dither(ImageDither dither, Frame frame, PixelFormat format) {
+        if (frame.image == null) throw new IllegalArgumentException("The frame has no image, e.g. it is an audio frame.");
+        if (frame.imageDepth != Frame.DEPTH_UBYTE && frame.imageDepth != Frame.DEPTH_BYTE) {
+            throw new IllegalArgumentException("Only frames with 8-bit channels can be dithered. (" + frame.imageDepth + ")");
+        }
+        if (frame.imageWidth != dither.getWidth() || frame.imageHeight != dither.getHeight()) {
+            throw new IllegalArgumentException("Frame is " + frame.imageWidth + "x" + frame.imageHeight + ", expected " + dither.getWidth() + "x" + dither.getHeight() + ".");
+        }
+        if (frame.imageChannels != format.getBytesPerPixel()) {
+            throw new IllegalArgumentException(format + " needs " + format.getBytesPerPixel() + " channels. (" + frame.imageChannels + ")");
+        }
+        // imageStride counts elements, which are bytes at this depth
+        return dither.dither((ByteBuffer) frame.image[0], format, 0, frame.imageStride);
+    }
+
+}
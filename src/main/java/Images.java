@@ -0,0 +1,71 @@
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBufferInt;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.nio.ByteBuffer;
+
+final class Images {
+
+    private Images() {}
+
+    // a TYPE_INT_ARGB image that draws straight from the given array, so nothing has to be copied into it
+    static BufferedImage wrap(int[] pixels, int width, int height) {
+        DataBufferInt buffer = new DataBufferInt(pixels, width * height);
+        int[] masks = new int[]{0x00FF0000, 0x0000FF00, 0x000000FF, 0xFF000000};
+        WritableRaster raster = Raster.createPackedRaster(buffer, width, height, width, masks, null);
+        return new BufferedImage(ColorModel.getRGBdefault(), raster, false, null);
+    }
+
+    /**
+     * Reads one row as packed RGB. The common capture formats are read through their raster, which
+     * does not allocate; anything else goes through getRGB, which allocates a little on every call.
+     * {@code bytes} is scratch space of at least {@code width * 3} elements.
+     */
+    static void readRow(BufferedImage image, int y, int width, int[] row, byte[] bytes) {
+        readRow(image, 0, y, width, row, bytes);
+    }
+
+    static void readRow(BufferedImage image, int x, int y, int width, int[] row, byte[] bytes) {
+        switch (image.getType()) {
+            case BufferedImage.TYPE_INT_RGB:
+            case BufferedImage.TYPE_INT_ARGB:
+                image.getRaster().getDataElements(x, y, width, 1, row);
+                break;
+            case BufferedImage.TYPE_3BYTE_BGR:
+                // data elements come out in band order, which is RGB
+                image.getRaster().getDataElements(x, y, width, 1, bytes);
+                for (int i = 0, bufferOffset = 0; i < width; i++, bufferOffset += 3) {
+                    row[i] = ((bytes[bufferOffset] & 0xFF) << 16) + ((bytes[bufferOffset + 1] & 0xFF) << 8) + (bytes[bufferOffset + 2] & 0xFF);
+                }
+                break;
+            default:
+                image.getRGB(x, y, width, 1, row, 0, width);
+        }
+    }
+
+    // every row of a width x height image has to be inside the buffer's limit
+    static void checkBuffer(ByteBuffer buffer, PixelFormat format, int offset, int stride, int width, int height) {
+        if (offset < 0) throw new IllegalArgumentException("Offset can not be negative. (" + offset + ")");
+        int rowLength = width * format.getBytesPerPixel();
+        if (stride < rowLength) throw new IllegalArgumentException("Stride is shorter than a row of " + rowLength + " bytes. (" + stride + ")");
+        long end = offset + ((long) (height - 1) * stride) + rowLength;
+        if (end > buffer.limit()) {
+            throw new IllegalArgumentException("Buffer is too small for a " + width + "x" + height + " image, it needs " + end + " bytes. (" + buffer.limit() + ")");
+        }
+    }
+
+    // reads width pixels starting at the byte index rowOffset as opaque packed RGB, without touching the buffer's position
+    static void readRow(ByteBuffer buffer, PixelFormat format, int rowOffset, int width, int[] target, int targetOffset) {
+        int bytesPerPixel = format.getBytesPerPixel();
+        int red = rowOffset + format.getRedOffset();
+        int green = rowOffset + format.getGreenOffset();
+        int blue = rowOffset + format.getBlueOffset();
+        for (int x = 0; x < width; x++) {
+            int offset = x * bytesPerPixel;
+            target[targetOffset + x] = (255 << 24) + ((buffer.get(red + offset) & 0xFF) << 16)
+                    + ((buffer.get(green + offset) & 0xFF) << 8) + (buffer.get(blue + offset) & 0xFF);
+        }
+    }
+
+}
@@ -0,0 +1,251 @@
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * An indexed LUT that stays bound to its palette. When a color is added, every entry only has to be compared
+ * against the new color; when a color is removed, only the entries that pointed to it are searched again and the
+ * others shift down by one where needed. When the palette's metric changes, every entry is searched again. The
+ * result is always the same table a full rebuild would give.
+ * <p>
+ * Updates run on the thread that changes the palette, split over the LUT's threads, and are written into a
+ * new table that is published once it is complete. The table it replaces is never written to again, a lookup that
+ * is still reading it finishes undisturbed, so lookups never see a half updated table and never block.
+ * {@link #close()} unbinds the LUT, it keeps answering with the last table.
+ */
+public class IncrementalLUT implements ColorLookup, PaletteListener, AutoCloseable {
+
+    public static final int MAX_COLORS = 65536;
+
+    private static final int POSSIBLE_COLORS = 16777216;
+    private static final int BATCH_SIZE = 4096;
+    // several chunks per thread, so a thread that is descheduled does not hold up the whole update
+    private static final int CHUNKS_PER_THREAD = 4;
+
+    private final ColorPalette PALETTE;
+    private final int THREAD_COUNT;
+    private final ExecutorService EXECUTOR;
+    private volatile Table table;
+
+    public IncrementalLUT(ColorPalette palette, int threadCount) {
+        if (threadCount <= 0) throw new IllegalArgumentException("Invalid thread count. Must be at least 1. (" + threadCount + ")");
+        int[] colors = palette.getColors();
+        if (colors.length == 0) throw new IllegalStateException("No colors are present in the palette. Add by calling addColor() methods");
+        if (colors.length > MAX_COLORS) {
+            throw new IllegalStateException("An IncrementalLUT holds at most " + MAX_COLORS + " colors. (" + colors.length + ")");
+        }
+        this.PALETTE = palette;
+        this.THREAD_COUNT = threadCount;
+        this.EXECUTOR = threadCount == 1 ? null : Executors.newFixedThreadPool(threadCount, runnable -> {
+            Thread thread = new Thread(runnable, "IncrementalLUT-worker");
+            thread.setDaemon(true);
+            return thread;
+        });
+        LUTBuildEvent event = LUTBuildEvent.start();
+        short[] indices = new short[POSSIBLE_COLORS];
+        DitherMetrics.lutAllocated(indices, (long) POSSIBLE_COLORS * Short.BYTES);
+        searchAll(indices);
+        this.table = new Table(colors, indices);
+        palette.addListener(this);
+        event.finish("incremental", palette, threadCount, (long) POSSIBLE_COLORS * Short.BYTES);
+    }
+
+    public int findNearestColorRGB(int rgb) {
+        Table current = table;
+        return current.COLORS[current.INDICES[~rgb & 0xFFFFFF] & 0xFFFF];
+    }
+
+    public int findNearestIndex(int rgb) {
+        return table.INDICES[~rgb & 0xFFFFFF] & 0xFFFF;
+    }
+
+    // a copy of the palette the current indices point into
+    public int[] getColors() {
+        return table.COLORS.clone();
+    }
+
+    public int getLength() {
+        return table.COLORS.length;
+    }
+
+    @Override
+    public synchronized void colorAdded(ColorPalette palette, int color, int index) {
+        if (palette != PALETTE) {
+            return;
+        }
+        LUTBuildEvent event = LUTBuildEvent.start();
+        int[] colors = palette.getColors();
+        if (colors.length > MAX_COLORS) {
+            close();
+            throw new IllegalStateException("An IncrementalLUT holds at most " + MAX_COLORS + " colors, it is no longer bound to the palette. (" + colors.length + ")");
+        }
+        Table current = table;
+        short[] from = current.INDICES;
+        short[] to = newTable();
+        // the same coordinates and distances the palette searches with
+        DistanceMetric metric = palette.getMetric();
+        float[] existing = new float[current.COLORS.length * 3];
+        for (int i = 0; i < current.COLORS.length; i++) {
+            metric.convert(current.COLORS[i], existing, i * 3);
+        }
+        float[] added = new float[3];
+        metric.convert(color, added, 0);
+        parallel((start, end) -> {
+            float[] point = new float[3];
+            for (int k = start; k < end; k++) {
+                metric.convert((k + 1) * -1, point, 0);
+                int nearest = from[k] & 0xFFFF;
+                float nearestDistance = metric.distance(point[0], point[1], point[2],
+                        existing[nearest * 3], existing[(nearest * 3) + 1], existing[(nearest * 3) + 2]);
+                float addedDistance = metric.distance(point[0], point[1], point[2], added[0], added[1], added[2]);
+                // strictly closer, on a tie the lower index wins like in a full search
+                to[k] = addedDistance < nearestDistance ? (short) index : from[k];
+            }
+        });
+        publish(event, colors, to);
+    }
+
+    @Override
+    public synchronized void colorRemoved(ColorPalette palette, int color, int index) {
+        if (palette != PALETTE) {
+            return;
+        }
+        LUTBuildEvent event = LUTBuildEvent.start();
+        // also converts the palette here, before the workers search it
+        int[] colors = palette.getColors();
+        if (colors.length == 0) {
+            close();
+            throw new IllegalStateException("The palette is empty, the IncrementalLUT is no longer bound to it.");
+        }
+        short[] from = table.INDICES;
+        short[] to = newTable();
+        parallel((start, end) -> {
+            int[] batch = new int[BATCH_SIZE];
+            int[] positions = new int[BATCH_SIZE];
+            int count = 0;
+            for (int k = start; k < end; k++) {
+                int nearest = from[k] & 0xFFFF;
+                if (nearest == index) {
+                    batch[count] = (k + 1) * -1;
+                    positions[count] = k;
+                    count++;
+                    if (count == BATCH_SIZE) {
+                        research(batch, positions, count, to);
+                        count = 0;
+                    }
+                } else {
+                    to[k] = (short) (nearest > index ? nearest - 1 : nearest);
+                }
+            }
+            research(batch, positions, count, to);
+        });
+        publish(event, colors, to);
+    }
+
+    // every entry is searched again, like when the LUT was created
+    @Override
+    public synchronized void metricChanged(ColorPalette palette, DistanceMetric metric) {
+        if (palette != PALETTE) {
+            return;
+        }
+        LUTBuildEvent event = LUTBuildEvent.start();
+        int[] colors = palette.getColors();
+        short[] to = newTable();
+        searchAll(to);
+        publish(event, colors, to);
+    }
+
+    // unbinds the LUT from the palette, lookups keep using the last table
+    @Override
+    public synchronized void close() {
+        PALETTE.removeListener(this);
+        if (EXECUTOR != null) {
+            EXECUTOR.shutdownNow();
+        }
+    }
+
+    private void searchAll(short[] indices) {
+        parallel((start, end) -> {
+            int[] batch = new int[BATCH_SIZE];
+            for (int k = start; k < end; k += BATCH_SIZE) {
+                int count = Math.min(BATCH_SIZE, end - k);
+                for (int i = 0; i < count; i++) {
+                    batch[i] = (k + i + 1) * -1;
+                }
+                PALETTE.findNearestIndices(batch, 0, batch, 0, count);
+                for (int i = 0; i < count; i++) {
+                    indices[k + i] = (short) batch[i];
+                }
+            }
+        });
+    }
+
+    private void research(int[] batch, int[] positions, int count, short[] to) {
+        if (count > 0) {
+            PALETTE.findNearestIndices(batch, 0, batch, 0, count);
+            for (int i = 0; i < count; i++) {
+                to[positions[i]] = (short) batch[i];
+            }
+        }
+    }
+
+    private void publish(LUTBuildEvent event, int[] colors, short[] indices) {
+        table = new Table(colors, indices);
+        event.finish("incremental", PALETTE, THREAD_COUNT, (long) POSSIBLE_COLORS * Short.BYTES);
+    }
+
+    // every update gets a table of its own, readers may still hold the published one for as long as they like
+    private short[] newTable() {
+        short[] indices = new short[POSSIBLE_COLORS];
+        DitherMetrics.lutAllocated(indices, (long) POSSIBLE_COLORS * Short.BYTES);
+        return indices;
+    }
+
+    private void parallel(Range range) {
+        if (EXECUTOR == null) {
+            range.fill(0, POSSIBLE_COLORS);
+            return;
+        }
+        int chunks = THREAD_COUNT * CHUNKS_PER_THREAD;
+        Future<?>[] futures = new Future<?>[chunks];
+        for (int i = 0; i < chunks; i++) {
+            int start = (int) ((long) POSSIBLE_COLORS * i / chunks);
+            int end = (int) ((long) POSSIBLE_COLORS * (i + 1) / chunks);
+            futures[i] = EXECUTOR.submit(() -> range.fill(start, end));
+        }
+        try {
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : new IllegalStateException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            for (Future<?> future : futures) {
+                future.cancel(true);
+            }
+            throw new CancellationException("Interrupted while updating the LUT.");
+        }
+    }
+
+    // the colors and the indices into them, always replaced together
+    private static final class Table {
+
+        private final int[] COLORS;
+        private final short[] INDICES;
+
+        private Table(int[] colors, short[] indices) {
+            this.COLORS = colors;
+            this.INDICES = indices;
+        }
+
+    }
+
+    // the LUT entries from start up to, not including, end
+    private interface Range {
+        void fill(int start, int end);
+    }
+
+}
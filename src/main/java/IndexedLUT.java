@@ -0,0 +1,60 @@
+/**
+ * A LUT that stores the index of the nearest palette color instead of the color itself: a byte per entry for
+ * palettes of up to 256 colors (16 MB), a short per entry for up to 65536 colors (32 MB), against 64 MB for an
+ * int[] LUT. Entries are laid out like the int[] LUT, the entry for an opaque color c is at ~c & 0xFFFFFF.
+ */
+public class IndexedLUT implements ColorLookup {
+
+    public static final int MAX_COLORS = 65536;
+
+    private final int[] COLORS;
+    private final byte[] BYTE_INDICES;
+    private final short[] SHORT_INDICES;
+
+    IndexedLUT(int[] colors, byte[] indices) {
+        this.COLORS = colors;
+        this.BYTE_INDICES = indices;
+        this.SHORT_INDICES = null;
+        DitherMetrics.lutAllocated(this, getMemoryUsage());
+    }
+
+    IndexedLUT(int[] colors, short[] indices) {
+        this.COLORS = colors;
+        this.BYTE_INDICES = null;
+        this.SHORT_INDICES = indices;
+        DitherMetrics.lutAllocated(this, getMemoryUsage());
+    }
+
+    public int findNearestColorRGB(int rgb) {
+        return COLORS[findNearestIndex(rgb)];
+    }
+
+    public int findNearestIndex(int rgb) {
+        int entry = ~rgb & 0xFFFFFF;
+        return BYTE_INDICES != null ? BYTE_INDICES[entry] & 0xFF : SHORT_INDICES[entry] & 0xFFFF;
+    }
+
+    // a copy of the palette the indices point into
+    public int[] getColors() {
+        return COLORS.clone();
+    }
+
+    public int getLength() {
+        return COLORS.length;
+    }
+
+    // the tables themselves, for LUTCache. Exactly one of them is not null
+    byte[] getByteIndices() {
+        return BYTE_INDICES;
+    }
+
+    short[] getShortIndices() {
+        return SHORT_INDICES;
+    }
+
+    public long getMemoryUsage() {
+        long entrySize = BYTE_INDICES != null ? Byte.BYTES : Short.BYTES;
+        return (16777216L * entrySize) + ((long) COLORS.length * Integer.BYTES);
+    }
+
+}
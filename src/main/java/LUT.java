@@ -1,47 +1,169 @@
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
 
 public class LUT {
 
-    private boolean lutCreated = false;
+    private volatile boolean lutCreated = false;
     private boolean multiThread = false;
-    private int threadCount;
+    private int threadCount = 1;
     private final ColorPalette PALETTE;
-    private final int POSSIBLE_COLORS = 16777216;
-    private final int[] colors = new int[POSSIBLE_COLORS];
+    private static final int POSSIBLE_COLORS = 16777216;
+    // entries handed to the palette at once, so it can resolve them as a batch
+    private static final int BATCH_SIZE = 4096;
+    // the fork/join tasks stop splitting at this size, progress and cancellation are checked once per block
+    private static final int BLOCK_SIZE = 65536;
+    // only allocated when an int[] LUT is asked for, an IndexedLUT does not need it. Every build fills an array of
+    // its own, which replaces this one only once it is complete
+    private volatile int[] colors;
 
     public LUT(ColorPalette palette) {
         this.PALETTE = palette;
     }
 
     public void createLUT() {
-        if (multiThread) {
-            ExecutorService executorService = Executors.newFixedThreadPool(threadCount);
-            int elementsPerThread = POSSIBLE_COLORS / threadCount;
-            int remainingPixels = POSSIBLE_COLORS % threadCount;
-            for (int i = 0; i < threadCount; i++) {
-                int startElement = i * elementsPerThread;
-                int endElement = startElement + elementsPerThread - 1;
-                if (i == threadCount - 1) {
-                    endElement += remainingPixels;
+        buildColors(null, () -> false);
+    }
+
+    /**
+     * Builds the LUT on a background thread, the future completes with the same array as {@link #getLUT()}.
+     * Cancelling the future stops the build after the blocks that are in progress, a LUT built before stays the
+     * one {@link #getLUT()} returns.
+     *
+     * @param listener may be null
+     */
+    public CompletableFuture<int[]> createLUTAsync(LUTProgressListener listener) {
+        CompletableFuture<int[]> future = new CompletableFuture<>();
+        startBuilder(future, () -> buildColors(listener, future::isCancelled));
+        return future;
+    }
+
+    // stores palette indices instead of colors, a quarter (up to 256 colors) or half of the size of createLUT()
+    public IndexedLUT createIndexedLUT() {
+        return buildIndexed(null, () -> false);
+    }
+
+    // like createLUTAsync(), for an IndexedLUT
+    public CompletableFuture<IndexedLUT> createIndexedLUTAsync(LUTProgressListener listener) {
+        CompletableFuture<IndexedLUT> future = new CompletableFuture<>();
+        startBuilder(future, () -> buildIndexed(listener, future::isCancelled));
+        return future;
+    }
+
+    // a cancelled or failed build leaves the previous table and isLUTCreated() as they were
+    private int[] buildColors(LUTProgressListener listener, BooleanSupplier cancelled) {
+        LUTBuildEvent event = LUTBuildEvent.start();
+        int[] colors = new int[POSSIBLE_COLORS];
+        DitherMetrics.lutAllocated(colors, (long) POSSIBLE_COLORS * Integer.BYTES);
+        fill(colorRange(colors, 0), listener, cancelled, 0, POSSIBLE_COLORS);
+        this.colors = colors;
+        lutCreated = true;
+        event.finish("int[]", PALETTE, getThreads(), (long) POSSIBLE_COLORS * Integer.BYTES);
+        return colors;
+    }
+
+    /**
+     * Fills the entries from start up to, not including, end into colors from colors[0] on, through the same blocks
+     * and pool as {@link #createLUT()} with the current thread setting. The LUT itself is left as it is, this is
+     * what {@link AutoTuner} times thread counts on instead of a whole build.
+     */
+    void fillRange(int[] colors, int start, int end) {
+        if (start < 0 || end > POSSIBLE_COLORS || start > end) {
+            throw new IllegalArgumentException("Invalid range of LUT entries. (" + start + " to " + end + ")");
+        }
+        if (colors.length < end - start) throw new IllegalArgumentException("Array is too small for " + (end - start) + " entries. (" + colors.length + ")");
+        fill(colorRange(colors, start), null, () -> false, start, end);
+    }
+
+    // writes entry i into colors[i - offset]
+    private Range colorRange(int[] colors, int offset) {
+        return (startElement, endElement) -> {
+            for (int k = startElement; k < endElement + 1; k += BATCH_SIZE) {
+                int count = Math.min(BATCH_SIZE, endElement + 1 - k);
+                for (int i = k; i < k + count; i++) {
+                    colors[i - offset] = (i + 1) * -1;
+                }
+                PALETTE.findNearestColorsRGB(colors, k - offset, colors, k - offset, count);
+            }
+        };
+    }
+
+    private IndexedLUT buildIndexed(LUTProgressListener listener, BooleanSupplier cancelled) {
+        LUTBuildEvent event = LUTBuildEvent.start();
+        int[] paletteColors = PALETTE.getColors();
+        if (paletteColors.length > IndexedLUT.MAX_COLORS) {
+            throw new IllegalStateException("An IndexedLUT holds at most " + IndexedLUT.MAX_COLORS + " colors. (" + paletteColors.length + ")");
+        }
+        if (paletteColors.length <= 256) {
+            byte[] indices = new byte[POSSIBLE_COLORS];
+            fill((startElement, endElement) -> {
+                int[] batch = new int[BATCH_SIZE];
+                for (int k = startElement; k < endElement + 1; k += BATCH_SIZE) {
+                    int count = resolveBatch(batch, k, endElement);
+                    for (int i = 0; i < count; i++) {
+                        indices[k + i] = (byte) batch[i];
+                    }
                 }
-                int finalEndElement = endElement;
-                executorService.submit(() -> {
-                    for (int k = startElement; k < finalEndElement + 1; k++) {
-                        colors[k] = PALETTE.findNearestColorRGB((k + 1) * -1);
+            }, listener, cancelled, 0, POSSIBLE_COLORS);
+            IndexedLUT lut = new IndexedLUT(paletteColors, indices);
+            event.finish("indexed", PALETTE, getThreads(), lut.getMemoryUsage());
+            return lut;
+        } else {
+            short[] indices = new short[POSSIBLE_COLORS];
+            fill((startElement, endElement) -> {
+                int[] batch = new int[BATCH_SIZE];
+                for (int k = startElement; k < endElement + 1; k += BATCH_SIZE) {
+                    int count = resolveBatch(batch, k, endElement);
+                    for (int i = 0; i < count; i++) {
+                        indices[k + i] = (short) batch[i];
                     }
-                });
+                }
+            }, listener, cancelled, 0, POSSIBLE_COLORS);
+            IndexedLUT lut = new IndexedLUT(paletteColors, indices);
+            event.finish("indexed", PALETTE, getThreads(), lut.getMemoryUsage());
+            return lut;
+        }
+    }
+
+    // the palette indices of the entries from k on, at most up to endElement, returns how many there are
+    private int resolveBatch(int[] batch, int k, int endElement) {
+        int count = Math.min(BATCH_SIZE, endElement + 1 - k);
+        for (int i = 0; i < count; i++) {
+            batch[i] = (k + i + 1) * -1;
+        }
+        PALETTE.findNearestIndices(batch, 0, batch, 0, count);
+        return count;
+    }
+
+    private <T> void startBuilder(CompletableFuture<T> future, Builder<T> builder) {
+        Thread thread = new Thread(() -> {
+            try {
+                future.complete(builder.build());
+            } catch (Throwable t) {
+                future.completeExceptionally(t);
             }
-            executorService.shutdown();
-            while (!executorService.isTerminated()) {
+        }, "LUT-builder");
+        thread.setDaemon(true);
+        thread.start();
+    }
 
+    private void fill(Range range, LUTProgressListener listener, BooleanSupplier cancelled, int start, int end) {
+        // converts the palette on this thread, the workers only read it
+        PALETTE.getColors();
+        Block root = new Block(range, listener, cancelled, new AtomicInteger(), start, end);
+        if (multiThread && threadCount > 1) {
+            ForkJoinPool pool = new ForkJoinPool(threadCount);
+            try {
+                pool.invoke(root);
+            } finally {
+                pool.shutdown();
             }
         } else {
-            for (int i = 0; i < colors.length; i++) {
-                colors[i] = PALETTE.findNearestColorRGB((i + 1) * -1);
-            }
+            root.fillSequentially();
         }
-        lutCreated = true;
     }
 
     public int[] getLUT() {
@@ -51,12 +173,16 @@ public class LUT {
         return colors;
     }
 
+    private int getThreads() {
+        return multiThread ? threadCount : 1;
+    }
+
     public boolean isLUTCreated() {
         return lutCreated;
     }
 
     public void enableMultiThreading() {
-        threadCount = (int) Math.floor(Runtime.getRuntime().availableProcessors() * 0.75);
+        threadCount = Math.max(1, (int) Math.floor(Runtime.getRuntime().availableProcessors() * 0.75));
         multiThread = true;
     }
 
@@ -65,10 +191,70 @@ public class LUT {
         if (!multiThread) {
             throw new IllegalStateException("Multi-threading is not enabled. Call enableMultiThreading() first.");
         }
-        if (threadCount <= 0 || threadCount > maxThreadCount) {
-            throw new IllegalArgumentException("Invalid thread count. Must be between 1 and " + maxThreadCount + ".");
+        if (threads <= 0 || threads > maxThreadCount) {
+            throw new IllegalArgumentException("Invalid thread count. Must be between 1 and " + maxThreadCount + ". (" + threads + ")");
         }
         threadCount = threads;
     }
 
+    // the entries from start up to, not including, end. Halves itself until a block is small enough to fill
+    private static final class Block extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Range RANGE;
+        private final LUTProgressListener LISTENER;
+        private final BooleanSupplier CANCELLED;
+        private final AtomicInteger COMPLETED;
+        private final int START;
+        private final int END;
+
+        private Block(Range range, LUTProgressListener listener, BooleanSupplier cancelled, AtomicInteger completed, int start, int end) {
+            this.RANGE = range;
+            this.LISTENER = listener;
+            this.CANCELLED = cancelled;
+            this.COMPLETED = completed;
+            this.START = start;
+            this.END = end;
+        }
+
+        @Override
+        protected void compute() {
+            if (END - START <= BLOCK_SIZE) {
+                fillBlock(START, END);
+            } else {
+                int middle = (START + END) >>> 1;
+                invokeAll(new Block(RANGE, LISTENER, CANCELLED, COMPLETED, START, middle),
+                        new Block(RANGE, LISTENER, CANCELLED, COMPLETED, middle, END));
+            }
+        }
+
+        private void fillSequentially() {
+            for (int start = START; start < END; start += BLOCK_SIZE) {
+                fillBlock(start, Math.min(END, start + BLOCK_SIZE));
+            }
+        }
+
+        private void fillBlock(int start, int end) {
+            if (CANCELLED.getAsBoolean()) {
+                throw new CancellationException("The LUT build was cancelled.");
+            }
+            RANGE.fill(start, end - 1);
+            int completed = COMPLETED.addAndGet(end - start);
+            if (LISTENER != null) {
+                LISTENER.progress(completed, POSSIBLE_COLORS);
+            }
+        }
+
+    }
+
+    private interface Builder<T> {
+        T build();
+    }
+
+    // an inclusive range of LUT entries
+    private interface Range {
+        void fill(int startElement, int endElement);
+    }
+
 }
@@ -0,0 +1,53 @@
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+// a LUT built or updated, recorded by JDK Flight Recorder when a recording enables dither.LUTBuild
+
+@Name("dither.LUTBuild")
+@Label("LUT Build")
+@Category("Dithering")
+@Description("A lookup table built from a palette, or updated after the palette changed")
+@StackTrace(false)
+final class LUTBuildEvent extends jdk.jfr.Event {
+
+    @Label("Kind")
+    @Description("int[], indexed, incremental or lazy")
+    String kind;
+
+    @Label("Colors")
+    int colors;
+
+    @Label("Metric")
+    String metric;
+
+    @Label("Threads")
+    int threads;
+
+    @Label("Size")
+    @DataAmount
+    long size;
+
+    static LUTBuildEvent start() {
+        LUTBuildEvent event = new LUTBuildEvent();
+        event.begin();
+        return event;
+    }
+
+    // commits the event if a recording wants it, counts the build in DitherMetrics either way
+    void finish(String kind, ColorPalette palette, int threads, long size) {
+        if (shouldCommit()) {
+            this.kind = kind;
+            this.colors = palette.getLength();
+            this.metric = palette.getMetric().getName();
+            this.threads = threads;
+            this.size = size;
+            commit();
+        }
+        DitherMetrics.lutBuilt();
+    }
+
+}
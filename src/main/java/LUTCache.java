@@ -0,0 +1,185 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.zip.CRC32C;
+
+/**
+ * Keeps built LUTs on disk so they are computed once per palette instead of once per process. The file name
+ * is a hash of the palette colors and the distance metric; later runs map the file read-only instead of
+ * building the LUT again.
+ * <p>
+ * File layout, little endian: magic, format version, bytes per entry (1 or 2), number of colors, CRC32C of the
+ * table, the palette colors, then the 16777216 entries of an {@link IndexedLUT}. A file whose header, palette or
+ * checksum does not match is rebuilt. Files are written to a temporary name and moved into place, so a reader
+ * never sees a half written table, even when several processes build the same LUT at the same time.
+ */
+public class LUTCache {
+
+    private static final int MAGIC = 0x4C555443;
+    private static final int VERSION = 1;
+    private static final int POSSIBLE_COLORS = 16777216;
+    private static final int HEADER_SIZE = 5 * Integer.BYTES;
+
+    private final Path DIRECTORY;
+
+    public LUTCache(Path directory) {
+        this.DIRECTORY = directory;
+    }
+
+    public static Path defaultDirectory() {
+        return Paths.get(System.getProperty("java.io.tmpdir"), "dither-lut-cache");
+    }
+
+    public Path getDirectory() {
+        return DIRECTORY;
+    }
+
+    // maps the cached LUT of the palette, building and storing it first if there is no valid one
+    public MappedLUT load(ColorPalette palette) throws IOException {
+        return load(palette, false);
+    }
+
+    public MappedLUT load(ColorPalette palette, boolean multiThreadded) throws IOException {
+        int[] colors = palette.getColors();
+        if (colors.length > IndexedLUT.MAX_COLORS) {
+            throw new IllegalArgumentException("Only palettes of up to " + IndexedLUT.MAX_COLORS + " colors can be cached. (" + colors.length + ")");
+        }
+        Path file = fileFor(palette.getMetric(), colors);
+        if (Files.exists(file)) {
+            MappedLUT lut = map(file, colors);
+            if (lut != null) {
+                return lut;
+            }
+        }
+        write(file, palette.createIndexedLUT(multiThreadded));
+        MappedLUT lut = map(file, colors);
+        if (lut == null) {
+            throw new IOException("LUT written to " + file + " does not verify.");
+        }
+        return lut;
+    }
+
+    public boolean isCached(ColorPalette palette) {
+        return Files.exists(fileFor(palette.getMetric(), palette.getColors()));
+    }
+
+    public Path fileFor(ColorPalette palette) {
+        return fileFor(palette.getMetric(), palette.getColors());
+    }
+
+    // the metric's name is hashed with the colors, a LUT of one metric is never mapped for another
+    private Path fileFor(DistanceMetric metric, int[] colors) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(metric.getName().getBytes(StandardCharsets.UTF_8));
+            ByteBuffer buffer = ByteBuffer.allocate((colors.length + 1) * Integer.BYTES);
+            buffer.putInt(VERSION);
+            for (int color : colors) {
+                buffer.putInt(color);
+            }
+            byte[] hash = digest.digest(buffer.array());
+            StringBuilder name = new StringBuilder("lut-");
+            for (int i = 0; i < 16; i++) {
+                name.append(String.format("%02x", hash[i]));
+            }
+            return DIRECTORY.resolve(name.append(".bin").toString());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available.", e);
+        }
+    }
+
+    // null if the file is not a valid LUT for these colors
+    private MappedLUT map(Path file, int[] colors) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < HEADER_SIZE) {
+                return null;
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            int magic = buffer.getInt(0);
+            int version = buffer.getInt(4);
+            int entrySize = buffer.getInt(8);
+            int colorCount = buffer.getInt(12);
+            int checksum = buffer.getInt(16);
+            if (magic != MAGIC || version != VERSION || colorCount != colors.length || entrySize != entrySize(colors.length)) {
+                return null;
+            }
+            int offset = HEADER_SIZE + (colorCount * Integer.BYTES);
+            if (size != offset + ((long) POSSIBLE_COLORS * entrySize)) {
+                return null;
+            }
+            int[] storedColors = new int[colorCount];
+            for (int i = 0; i < colorCount; i++) {
+                storedColors[i] = buffer.getInt(HEADER_SIZE + (i * Integer.BYTES));
+            }
+            if (!Arrays.equals(storedColors, colors)) {
+                return null;
+            }
+            CRC32C crc = new CRC32C();
+            crc.update(buffer.slice(offset, POSSIBLE_COLORS * entrySize));
+            if ((int) crc.getValue() != checksum) {
+                return null;
+            }
+            // the mapping stays valid after the channel is closed
+            return new MappedLUT(buffer, storedColors, offset, entrySize == Short.BYTES);
+        }
+    }
+
+    private void write(Path file, IndexedLUT lut) throws IOException {
+        Files.createDirectories(DIRECTORY);
+        int[] colors = lut.getColors();
+        ByteBuffer table;
+        if (lut.getByteIndices() != null) {
+            table = ByteBuffer.wrap(lut.getByteIndices());
+        } else {
+            short[] indices = lut.getShortIndices();
+            table = ByteBuffer.allocate(indices.length * Short.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            table.asShortBuffer().put(indices);
+        }
+        CRC32C crc = new CRC32C();
+        crc.update(table.duplicate());
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE + (colors.length * Integer.BYTES)).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC).putInt(VERSION).putInt(entrySize(colors.length)).putInt(colors.length).putInt((int) crc.getValue());
+        for (int color : colors) {
+            header.putInt(color);
+        }
+        header.flip();
+        Path temporary = Files.createTempFile(DIRECTORY, file.getFileName().toString(), ".tmp");
+        try {
+            try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                while (header.hasRemaining()) {
+                    channel.write(header);
+                }
+                while (table.hasRemaining()) {
+                    channel.write(table);
+                }
+                channel.force(true);
+            }
+            try {
+                Files.move(temporary, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    private static int entrySize(int colorCount) {
+        return colorCount <= 256 ? Byte.BYTES : Short.BYTES;
+    }
+
+}
@@ -0,0 +1,8 @@
+// reports how far a LUT build is, called from the threads that build it whenever a block of entries is done
+
+@FunctionalInterface
+public interface LUTProgressListener {
+
+    void progress(int completedEntries, int totalEntries);
+
+}
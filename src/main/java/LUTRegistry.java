@@ -0,0 +1,250 @@
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Supplier;
+
+/**
+ * Shares built LUTs between everything in the process that dithers with the same palette. A LUT is looked up by the
+ * palette's contents, its colors in order and its distance metric, so two palette instances with the same colors
+ * share one table. It is built once: callers that ask while it is being built wait for that build instead of
+ * starting their own.
+ * <p>
+ * The tables are kept up to {@link #getMaxBytes()}. When a new one pushes the total over it, the least recently
+ * used ones are dropped until the total fits again, a table larger than the whole budget is still handed out and
+ * kept alone. A dropped table is only forgotten by the registry: engines that hold it keep using it, and the next
+ * request for its palette builds it again.
+ */
+public class LUTRegistry {
+
+    private static final LUTRegistry INSTANCE = new LUTRegistry(Long.getLong("dither.lutRegistry.maxBytes", Runtime.getRuntime().maxMemory() / 4));
+
+    // the kinds of table a palette can have
+    private static final int INT_LUT = 0;
+    private static final int INDEXED_LUT = 1;
+
+    // in access order, the eldest entry is the least recently used one
+    private final Map<Key, Entry> ENTRIES = new LinkedHashMap<>(16, 0.75f, true);
+    private long maxBytes;
+    private int buildThreads = 0;
+    private long bytesInUse;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    public LUTRegistry(long maxBytes) {
+        if (maxBytes <= 0) throw new IllegalArgumentException("The memory budget must be positive. (" + maxBytes + ")");
+        this.maxBytes = maxBytes;
+    }
+
+    // the registry of the process, its budget is -Ddither.lutRegistry.maxBytes or a quarter of the maximum heap
+    public static LUTRegistry getInstance() {
+        return INSTANCE;
+    }
+
+    // the int[] LUT of the palette's current colors, the array is shared and must not be written to
+    public int[] getLUT(ColorPalette palette) {
+        return getLUT(palette, getBuildThreads());
+    }
+
+    // like getLUT(palette), a table that is not there yet is built with the given threads, e.g. a tuned count
+    public int[] getLUT(ColorPalette palette, int buildThreads) {
+        checkThreads(buildThreads);
+        Key key = new Key(INT_LUT, palette);
+        return (int[]) get(key, () -> {
+            LUT lut = new LUT(key.palette());
+            configure(lut, buildThreads);
+            lut.createLUT();
+            return lut.getLUT();
+        });
+    }
+
+    // the IndexedLUT of the palette's current colors, for palettes of up to IndexedLUT.MAX_COLORS colors
+    public IndexedLUT getIndexedLUT(ColorPalette palette) {
+        Key key = new Key(INDEXED_LUT, palette);
+        return (IndexedLUT) get(key, () -> {
+            LUT lut = new LUT(key.palette());
+            configure(lut, getBuildThreads());
+            return lut.createIndexedLUT();
+        });
+    }
+
+    // evicts least recently used tables right away if the new budget is smaller
+    public synchronized void setMaxBytes(long maxBytes) {
+        if (maxBytes <= 0) throw new IllegalArgumentException("The memory budget must be positive. (" + maxBytes + ")");
+        this.maxBytes = maxBytes;
+        evict(null);
+    }
+
+    public synchronized long getMaxBytes() {
+        return maxBytes;
+    }
+
+    // threads of every build from now on, 0 leaves it to LUT.enableMultiThreading(), e.g. AutoTuner.Profile.getLUTThreads()
+    public synchronized void setBuildThreads(int threads) {
+        checkThreads(threads);
+        this.buildThreads = threads;
+    }
+
+    public synchronized int getBuildThreads() {
+        return buildThreads;
+    }
+
+    // the tables that are built, not the ones still being built
+    public synchronized long getBytesInUse() {
+        return bytesInUse;
+    }
+
+    public synchronized int getSize() {
+        return ENTRIES.size();
+    }
+
+    // requests that found their table, built or being built
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    // requests that had to build their table
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    // tables dropped to stay within the budget
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    // forgets every built table, builds in progress still finish for the callers waiting for them
+    public synchronized void clear() {
+        ENTRIES.values().removeIf(entry -> entry.bytes >= 0);
+        bytesInUse = 0;
+    }
+
+    private Object get(Key key, Supplier<Object> builder) {
+        Entry entry;
+        boolean build = false;
+        synchronized (this) {
+            entry = ENTRIES.get(key);
+            if (entry == null) {
+                entry = new Entry();
+                ENTRIES.put(key, entry);
+                misses++;
+                build = true;
+            } else {
+                hits++;
+            }
+        }
+        if (build) {
+            Object table;
+            try {
+                table = builder.get();
+            } catch (RuntimeException | Error e) {
+                // the next request tries again
+                synchronized (this) {
+                    ENTRIES.remove(key, entry);
+                }
+                entry.TABLE.completeExceptionally(e);
+                throw e;
+            }
+            synchronized (this) {
+                entry.bytes = table instanceof int[] ? (long) ((int[]) table).length * Integer.BYTES : ((IndexedLUT) table).getMemoryUsage();
+                // a table cleared while it was built is handed out but not kept
+                if (ENTRIES.get(key) == entry) {
+                    bytesInUse += entry.bytes;
+                    evict(entry);
+                }
+            }
+            entry.TABLE.complete(table);
+            return table;
+        }
+        try {
+            return entry.TABLE.join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException("The LUT could not be built.", cause);
+        }
+    }
+
+    // drops the least recently used built tables, but not keep, until the budget fits
+    private void evict(Entry keep) {
+        Iterator<Entry> entries = ENTRIES.values().iterator();
+        while (bytesInUse > maxBytes && entries.hasNext()) {
+            Entry entry = entries.next();
+            if (entry != keep && entry.bytes >= 0) {
+                entries.remove();
+                bytesInUse -= entry.bytes;
+                evictions++;
+            }
+        }
+    }
+
+    private static void checkThreads(int threads) {
+        if (threads < 0 || threads > Runtime.getRuntime().availableProcessors()) {
+            throw new IllegalArgumentException("Invalid thread count. Must be between 0 and " + Runtime.getRuntime().availableProcessors() + ". (" + threads + ")");
+        }
+    }
+
+    private static void configure(LUT lut, int threads) {
+        if (threads != 1) {
+            lut.enableMultiThreading();
+            if (threads > 1) {
+                lut.setThreadCount(threads);
+            }
+        }
+    }
+
+    private static final class Entry {
+
+        private final CompletableFuture<Object> TABLE = new CompletableFuture<>();
+        // -1 while the table is being built
+        private long bytes = -1;
+
+    }
+
+    // the contents of a palette at the time of the request, changing the palette later does not change the key
+    private static final class Key {
+
+        private final int KIND;
+        private final int[] COLORS;
+        private final DistanceMetric METRIC;
+        private final int HASH;
+
+        private Key(int kind, ColorPalette palette) {
+            this.KIND = kind;
+            this.COLORS = palette.getColors();
+            this.METRIC = palette.getMetric();
+            this.HASH = (((kind * 31) + Arrays.hashCode(COLORS)) * 31) + METRIC.getName().hashCode();
+        }
+
+        // a palette of its own to build from, the caller's may change while the table is built
+        private ColorPalette palette() {
+            ColorPalette palette = new ColorPalette(COLORS);
+            palette.setMetric(METRIC);
+            return palette;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) other;
+            return KIND == key.KIND && METRIC.getName().equals(key.METRIC.getName()) && Arrays.equals(COLORS, key.COLORS);
+        }
+
+        @Override
+        public int hashCode() {
+            return HASH;
+        }
+
+    }
+
+}
@@ -0,0 +1,123 @@
+/**
+ * An indexed LUT that is filled on demand: every entry starts as 0 and is computed through the palette the first
+ * time a color is looked up, so a video can start dithering right away instead of waiting for all 16777216 entries.
+ * Entries hold the palette index + 1. Threads that race on the same entry both compute and write the same value,
+ * so no locking is needed, and a thread that does not see another one's write yet only computes it again.
+ * <p>
+ * {@link #startBackgroundFill()} completes the rest of the table on a low priority thread, after which every
+ * lookup is a plain array read like in {@link IndexedLUT}. The palette and its metric must not change while the LUT is in use.
+ */
+public class LazyLUT implements ColorLookup, AutoCloseable {
+
+    public static final int MAX_COLORS = 65535;
+
+    private static final int POSSIBLE_COLORS = 16777216;
+    private static final int BATCH_SIZE = 4096;
+
+    private final ColorPalette PALETTE;
+    private final int[] COLORS;
+    private final short[] ENTRIES = new short[POSSIBLE_COLORS];
+    private Thread fillThread;
+    private volatile boolean complete = false;
+
+    public LazyLUT(ColorPalette palette) {
+        // also converts the palette now, a lazy conversion from several threads at once is not safe
+        int[] colors = palette.getColors();
+        if (colors.length > MAX_COLORS) {
+            throw new IllegalStateException("A LazyLUT holds at most " + MAX_COLORS + " colors. (" + colors.length + ")");
+        }
+        this.PALETTE = palette;
+        this.COLORS = colors;
+        DitherMetrics.lutAllocated(this, (long) POSSIBLE_COLORS * Short.BYTES);
+    }
+
+    public int findNearestColorRGB(int rgb) {
+        return COLORS[findNearestIndex(rgb)];
+    }
+
+    public int findNearestIndex(int rgb) {
+        int entry = ~rgb & 0xFFFFFF;
+        int stored = ENTRIES[entry] & 0xFFFF;
+        if (stored == 0) {
+            stored = PALETTE.findNearestIndex(rgb) + 1;
+            ENTRIES[entry] = (short) stored;
+        }
+        return stored - 1;
+    }
+
+    /**
+     * Fills every entry that has not been looked up yet on a daemon thread, batch by batch. Lookups keep working
+     * while it runs. Calling it again while the thread runs, or after the table is complete, does nothing.
+     */
+    public synchronized void startBackgroundFill() {
+        if (complete || (fillThread != null && fillThread.isAlive())) {
+            return;
+        }
+        fillThread = new Thread(this::fill, "LazyLUT-fill");
+        fillThread.setDaemon(true);
+        fillThread.setPriority(Thread.MIN_PRIORITY);
+        fillThread.start();
+    }
+
+    // true once the background fill went through the whole table
+    public boolean isComplete() {
+        return complete;
+    }
+
+    // entries that were computed so far, scans the whole table
+    public int getFilledEntries() {
+        int filled = 0;
+        for (short entry : ENTRIES) {
+            if (entry != 0) {
+                filled++;
+            }
+        }
+        return filled;
+    }
+
+    // a copy of the palette the indices point into
+    public int[] getColors() {
+        return COLORS.clone();
+    }
+
+    public int getLength() {
+        return COLORS.length;
+    }
+
+    // stops the background fill, the entries computed so far stay valid
+    @Override
+    public synchronized void close() {
+        if (fillThread != null) {
+            fillThread.interrupt();
+            fillThread = null;
+        }
+    }
+
+    private void fill() {
+        LUTBuildEvent event = LUTBuildEvent.start();
+        int[] batch = new int[BATCH_SIZE];
+        int[] positions = new int[BATCH_SIZE];
+        for (int k = 0; k < POSSIBLE_COLORS; k += BATCH_SIZE) {
+            if (Thread.currentThread().isInterrupted()) {
+                return;
+            }
+            int count = 0;
+            for (int entry = k; entry < k + BATCH_SIZE; entry++) {
+                if (ENTRIES[entry] == 0) {
+                    batch[count] = (entry + 1) * -1;
+                    positions[count] = entry;
+                    count++;
+                }
+            }
+            if (count > 0) {
+                PALETTE.findNearestIndices(batch, 0, batch, 0, count);
+                for (int i = 0; i < count; i++) {
+                    ENTRIES[positions[i]] = (short) (batch[i] + 1);
+                }
+            }
+        }
+        complete = true;
+        event.finish("lazy", PALETTE, 1, (long) POSSIBLE_COLORS * Short.BYTES);
+    }
+
+}
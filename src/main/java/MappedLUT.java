@@ -0,0 +1,47 @@
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+
+/**
+ * An {@link IndexedLUT} read straight from a file mapped by {@link LUTCache}. The table lives in the page cache,
+ * not on the heap, so every JVM on the host that maps the same file shares one copy of it.
+ */
+public class MappedLUT implements ColorLookup {
+
+    private final MappedByteBuffer BUFFER;
+    private final int[] COLORS;
+    private final int OFFSET;
+    private final boolean SHORT_INDICES;
+
+    MappedLUT(MappedByteBuffer buffer, int[] colors, int offset, boolean shortIndices) {
+        this.BUFFER = buffer;
+        BUFFER.order(ByteOrder.LITTLE_ENDIAN);
+        this.COLORS = colors;
+        this.OFFSET = offset;
+        this.SHORT_INDICES = shortIndices;
+        // the mapping is released when the buffer is collected, together with this LUT
+        DitherMetrics.lutAllocated(this, buffer.capacity());
+    }
+
+    public int findNearestColorRGB(int rgb) {
+        return COLORS[findNearestIndex(rgb)];
+    }
+
+    public int findNearestIndex(int rgb) {
+        int entry = ~rgb & 0xFFFFFF;
+        return SHORT_INDICES ? BUFFER.getShort(OFFSET + (entry << 1)) & 0xFFFF : BUFFER.get(OFFSET + entry) & 0xFF;
+    }
+
+    public int[] getColors() {
+        return COLORS.clone();
+    }
+
+    public int getLength() {
+        return COLORS.length;
+    }
+
+    // asks the OS to read the whole table in now instead of page by page on first use
+    public void preload() {
+        BUFFER.load();
+    }
+
+}
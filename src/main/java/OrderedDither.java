@@ -0,0 +1,268 @@
+import java.awt.image.BufferedImage;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Ordered dithering: every pixel is offset by the threshold of its cell in a {@link ThresholdMap} that repeats over
+ * the image, then looked up in the LUT or palette. No pixel depends on another, so the rows are split into bands
+ * that a fork/join pool dithers in parallel, and offsetting a row is a plain loop over int arrays that the JIT
+ * vectorizes. Expect a regular pattern with a Bayer matrix and fine grain with blue noise, with less tone accuracy
+ * than error diffusion but no limit on how many threads help.
+ */
+public class OrderedDither implements ImageDither, AutoCloseable {
+
+    // bands per thread, so a thread that finishes early takes work from one that lags
+    private static final int BANDS_PER_THREAD = 4;
+
+    private final int WIDTH;
+    private final int HEIGHT;
+    private final DitherCanvas CANVAS;
+    private final int[] LUT;
+    private final ColorLookup LOOKUP;
+    private final ThresholdMap MAP;
+    private final int SPREAD;
+    // the offset of every pixel of MAP.getHeight() rows, a whole image row each so the map does not wrap per pixel
+    private final int[] OFFSETS;
+    private final int THREAD_COUNT;
+    private final Band[] BANDS;
+    private final ForkJoinPool POOL;
+    private final RecursiveAction ALL_BANDS;
+    // the input being dithered, the bands see it through the pool like their own fields
+    private int[] pixels;
+    private byte[] bytes;
+    private BufferedImage source;
+    private ByteBuffer buffer;
+    private PixelFormat format;
+    private int bufferStart;
+    private int bufferStride;
+
+    /**
+     * @param spread how far the thresholds move a channel, from the darkest to the lightest cell. About the distance
+     *               between neighbouring palette colors works best, see {@link #spreadFor(int)}.
+     */
+    public OrderedDither(int width, int height, int[] lut, ThresholdMap map, int spread, int threadCount) {
+        this(width, height, lut, null, map, spread, threadCount);
+        if (lut.length < 16777216) throw new IllegalArgumentException("LUT have atleast 16777216 elements.");
+    }
+
+    public OrderedDither(int width, int height, ColorLookup lookup, ThresholdMap map, int spread, int threadCount) {
+        this(width, height, null, lookup, map, spread, threadCount);
+    }
+
+    private OrderedDither(int width, int height, int[] lut, ColorLookup lookup, ThresholdMap map, int spread, int threadCount) {
+        if (spread < 0 || spread > 255) throw new IllegalArgumentException("Spread must be between 0 and 255. (" + spread + ")");
+        if (threadCount <= 0) throw new IllegalArgumentException("Invalid thread count. Must be at least 1. (" + threadCount + ")");
+        this.WIDTH = width;
+        this.HEIGHT = height;
+        this.CANVAS = new DitherCanvas(width, height);
+        this.LUT = lut;
+        this.LOOKUP = lookup;
+        this.MAP = map;
+        this.SPREAD = spread;
+        this.OFFSETS = new int[map.getHeight() * width];
+        for (int y = 0; y < map.getHeight(); y++) {
+            for (int x = 0; x < width; x++) {
+                OFFSETS[(y * width) + x] = (int) Math.round((map.getThreshold(x, y) - 0.5) * spread);
+            }
+        }
+        this.THREAD_COUNT = Math.min(threadCount, height);
+        int bandCount = THREAD_COUNT == 1 ? 1 : Math.min(height, THREAD_COUNT * BANDS_PER_THREAD);
+        this.BANDS = new Band[bandCount];
+        for (int i = 0; i < bandCount; i++) {
+            BANDS[i] = new Band((int) ((long) height * i / bandCount), (int) ((long) height * (i + 1) / bandCount));
+        }
+        this.POOL = THREAD_COUNT == 1 ? null : new ForkJoinPool(THREAD_COUNT, pool -> {
+            ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+            thread.setName("OrderedDither-worker");
+            return thread;
+        }, null, false);
+        this.ALL_BANDS = new RecursiveAction() {
+            @Override
+            protected void compute() {
+                invokeAll(BANDS);
+            }
+        };
+    }
+
+    /**
+     * A spread for a palette of the given size: the distance between neighbouring levels if the colors were spread
+     * evenly over a cube of cbrt(colors) levels per channel. Palettes with few colors on a channel need more.
+     */
+    public static int spreadFor(int colors) {
+        if (colors <= 0) throw new IllegalArgumentException("A palette has at least one color. (" + colors + ")");
+        double levels = Math.cbrt(colors);
+        return levels <= 2 ? 255 : (int) Math.round(255 / (levels - 1));
+    }
+
+    public ThresholdMap getMap() {
+        return MAP;
+    }
+
+    public int getSpread() {
+        return SPREAD;
+    }
+
+    public int getThreadCount() {
+        return THREAD_COUNT;
+    }
+
+    public int getWidth() {
+        return WIDTH;
+    }
+
+    public int getHeight() {
+        return HEIGHT;
+    }
+
+    public void setTarget(DitherTarget target) {
+        CANVAS.setTarget(target);
+    }
+
+    public BufferedImage dither(int[] raster) {
+        this.pixels = raster;
+        try {
+            return run();
+        } finally {
+            this.pixels = null;
+        }
+    }
+
+    public BufferedImage dither(byte[] raster) {
+        this.bytes = raster;
+        try {
+            return run();
+        } finally {
+            this.bytes = null;
+        }
+    }
+
+    public BufferedImage dither(BufferedImage image) {
+        this.source = image;
+        try {
+            return run();
+        } finally {
+            this.source = null;
+        }
+    }
+
+    public BufferedImage dither(ByteBuffer buffer, PixelFormat format, int offset, int stride) {
+        Images.checkBuffer(buffer, format, offset, stride, WIDTH, HEIGHT);
+        this.buffer = buffer;
+        this.format = format;
+        this.bufferStart = offset;
+        this.bufferStride = stride;
+        try {
+            return run();
+        } finally {
+            this.buffer = null;
+            this.format = null;
+        }
+    }
+
+    @Override
+    public void close() {
+        if (POOL != null) {
+            POOL.shutdownNow();
+        }
+    }
+
+    private BufferedImage run() {
+        DitherEvent event = DitherEvent.start();
+        CANVAS.pixels();
+        if (POOL == null) {
+            BANDS[0].dither();
+        } else {
+            // a palette converts its colors on the first lookup after a change, that happens here instead of on
+            // every worker at once
+            if (LOOKUP != null) {
+                LOOKUP.findNearestColorRGB(0xFF000000);
+            }
+            for (Band band : BANDS) {
+                band.reinitialize();
+            }
+            ALL_BANDS.reinitialize();
+            POOL.invoke(ALL_BANDS);
+        }
+        DitherMetrics.dithered(event, this, WIDTH, HEIGHT, null, THREAD_COUNT, 0, 0);
+        return CANVAS.image();
+    }
+
+    // rows from START to END, with a row buffer of its own
+    private final class Band extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int START;
+        private final int END;
+        private final int[] ROW_BUFFER = new int[WIDTH];
+        private final byte[] BYTE_BUFFER = new byte[WIDTH * 3];
+
+        private Band(int start, int end) {
+            this.START = start;
+            this.END = end;
+        }
+
+        @Override
+        protected void compute() {
+            dither();
+        }
+
+        private void dither() {
+            int[] canvas = CANVAS.pixels();
+            for (int y = START; y < END; y++) {
+                int[] row;
+                int rowOffset;
+                if (pixels != null) {
+                    row = pixels;
+                    rowOffset = y * WIDTH;
+                } else {
+                    loadRow(y);
+                    row = ROW_BUFFER;
+                    rowOffset = 0;
+                }
+                int canvasOffset = y * WIDTH;
+                offsetRow(row, rowOffset, canvas, canvasOffset, (y % MAP.getHeight()) * WIDTH);
+                if (LUT != null) {
+                    for (int x = canvasOffset; x < canvasOffset + WIDTH; x++) {
+                        canvas[x] = LUT[~canvas[x] & 0xFFFFFF];
+                    }
+                } else {
+                    LOOKUP.findNearestColorsRGB(canvas, canvasOffset, canvas, canvasOffset, WIDTH);
+                }
+                CANVAS.store(canvasOffset, WIDTH);
+            }
+        }
+
+        // the offset colors go into the canvas, the lookup replaces them there
+        private void offsetRow(int[] row, int rowOffset, int[] canvas, int canvasOffset, int offsetsStart) {
+            int[] offsets = OFFSETS;
+            for (int x = 0; x < WIDTH; x++) {
+                int pixel = row[rowOffset + x];
+                int offset = offsets[offsetsStart + x];
+                int red = Math.min(255, Math.max(0, ((pixel >> 16) & 0xFF) + offset));
+                int green = Math.min(255, Math.max(0, ((pixel >> 8) & 0xFF) + offset));
+                int blue = Math.min(255, Math.max(0, (pixel & 0xFF) + offset));
+                canvas[canvasOffset + x] = 0xFF000000 | (red << 16) | (green << 8) | blue;
+            }
+        }
+
+        private void loadRow(int y) {
+            if (bytes != null) {
+                // byte rasters are in BGR order
+                int bufferOffset = y * WIDTH * 3;
+                for (int x = 0; x < WIDTH; x++) {
+                    ROW_BUFFER[x] = ((bytes[bufferOffset + 2] & 0xFF) << 16) + ((bytes[bufferOffset + 1] & 0xFF) << 8) + (bytes[bufferOffset] & 0xFF);
+                    bufferOffset += 3;
+                }
+            } else if (buffer != null) {
+                Images.readRow(buffer, format, bufferStart + (y * bufferStride), WIDTH, ROW_BUFFER, 0);
+            } else {
+                Images.readRow(source, y, WIDTH, ROW_BUFFER, BYTE_BUFFER);
+            }
+        }
+
+    }
+
+}
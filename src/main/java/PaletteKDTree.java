@@ -0,0 +1,152 @@
+/**
+ * Exact nearest color search over a palette in linear sRGB. The tree is implicit: the nodes are the palette
+ * entries reordered so that every range [lo, hi) has its splitting node in the middle, split on the axis
+ * with the largest spread. A subtree is skipped when the distance to its splitting plane alone is already
+ * larger than the best match so far.
+ * <p>
+ * Distances are computed with the same float expression as the linear scan in {@link ColorPalette}, and ties
+ * go to the lower palette index, so both always return the same color.
+ */
+final class PaletteKDTree {
+
+    private static final int RED = 0;
+    private static final int GREEN = 1;
+    private static final int BLUE = 2;
+
+    private final int[] INDICES;
+    private final float[] RED_VALUES;
+    private final float[] GREEN_VALUES;
+    private final float[] BLUE_VALUES;
+    private final byte[] AXES;
+
+    PaletteKDTree(float[] linearR, float[] linearG, float[] linearB) {
+        int length = linearR.length;
+        this.INDICES = new int[length];
+        this.RED_VALUES = new float[length];
+        this.GREEN_VALUES = new float[length];
+        this.BLUE_VALUES = new float[length];
+        this.AXES = new byte[length];
+        for (int i = 0; i < length; i++) {
+            INDICES[i] = i;
+        }
+        build(linearR, linearG, linearB, 0, length);
+        for (int i = 0; i < length; i++) {
+            RED_VALUES[i] = linearR[INDICES[i]];
+            GREEN_VALUES[i] = linearG[INDICES[i]];
+            BLUE_VALUES[i] = linearB[INDICES[i]];
+        }
+    }
+
+    int findNearestIndex(float linearRed, float linearGreen, float linearBlue) {
+        long best = search(0, INDICES.length, linearRed, linearGreen, linearBlue, Long.MAX_VALUE);
+        return (int) best;
+    }
+
+    /**
+     * The best match is carried as (distance bits << 32 | palette index). Distances are never negative, so their
+     * bits order like the floats, and comparing the longs compares by distance first and index second. Nothing
+     * has to be allocated and the tree can be searched from any number of threads.
+     */
+    private long search(int lo, int hi, float linearRed, float linearGreen, float linearBlue, long best) {
+        if (lo >= hi) {
+            return best;
+        }
+        int mid = (lo + hi) >>> 1;
+        float distance = ((linearRed - RED_VALUES[mid]) * (linearRed - RED_VALUES[mid])) +
+                ((linearGreen - GREEN_VALUES[mid]) * (linearGreen - GREEN_VALUES[mid])) +
+                ((linearBlue - BLUE_VALUES[mid]) * (linearBlue - BLUE_VALUES[mid]));
+        long candidate = ((long) Float.floatToRawIntBits(distance) << 32) | INDICES[mid];
+        if (candidate < best) {
+            best = candidate;
+        }
+        float planeDistance;
+        switch (AXES[mid]) {
+            case RED:
+                planeDistance = linearRed - RED_VALUES[mid];
+                break;
+            case GREEN:
+                planeDistance = linearGreen - GREEN_VALUES[mid];
+                break;
+            default:
+                planeDistance = linearBlue - BLUE_VALUES[mid];
+        }
+        boolean lowerFirst = planeDistance < 0;
+        best = lowerFirst
+                ? search(lo, mid, linearRed, linearGreen, linearBlue, best)
+                : search(mid + 1, hi, linearRed, linearGreen, linearBlue, best);
+        // the full distance of anything on the other side is at least the plane distance squared, equal still
+        // has to be visited because a lower index may be waiting there
+        if (planeDistance * planeDistance <= Float.intBitsToFloat((int) (best >>> 32))) {
+            best = lowerFirst
+                    ? search(mid + 1, hi, linearRed, linearGreen, linearBlue, best)
+                    : search(lo, mid, linearRed, linearGreen, linearBlue, best);
+        }
+        return best;
+    }
+
+    private void build(float[] linearR, float[] linearG, float[] linearB, int lo, int hi) {
+        if (hi - lo <= 0) {
+            return;
+        }
+        int axis = widestAxis(linearR, linearG, linearB, lo, hi);
+        float[] values = axis == RED ? linearR : axis == GREEN ? linearG : linearB;
+        int mid = (lo + hi) >>> 1;
+        select(values, lo, hi - 1, mid);
+        AXES[mid] = (byte) axis;
+        build(linearR, linearG, linearB, lo, mid);
+        build(linearR, linearG, linearB, mid + 1, hi);
+    }
+
+    private int widestAxis(float[] linearR, float[] linearG, float[] linearB, int lo, int hi) {
+        float redSpread = spread(linearR, lo, hi);
+        float greenSpread = spread(linearG, lo, hi);
+        float blueSpread = spread(linearB, lo, hi);
+        if (redSpread >= greenSpread && redSpread >= blueSpread) {
+            return RED;
+        }
+        return greenSpread >= blueSpread ? GREEN : BLUE;
+    }
+
+    private float spread(float[] values, int lo, int hi) {
+        float min = Float.MAX_VALUE;
+        float max = -Float.MAX_VALUE;
+        for (int i = lo; i < hi; i++) {
+            float value = values[INDICES[i]];
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+        }
+        return max - min;
+    }
+
+    // quickselect on INDICES, afterwards everything left of k is <= values[k] and everything right of it >=
+    private void select(float[] values, int left, int right, int k) {
+        while (left < right) {
+            float pivot = values[INDICES[(left + right) >>> 1]];
+            int i = left;
+            int j = right;
+            while (i <= j) {
+                while (values[INDICES[i]] < pivot) {
+                    i++;
+                }
+                while (values[INDICES[j]] > pivot) {
+                    j--;
+                }
+                if (i <= j) {
+                    int swap = INDICES[i];
+                    INDICES[i] = INDICES[j];
+                    INDICES[j] = swap;
+                    i++;
+                    j--;
+                }
+            }
+            if (k <= j) {
+                right = j;
+            } else if (k >= i) {
+                left = i;
+            } else {
+                return;
+            }
+        }
+    }
+
+}
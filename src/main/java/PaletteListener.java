@@ -0,0 +1,14 @@
+// notified after a color was added to or removed from a ColorPalette, or its metric changed, on the thread that changed it
+
+public interface PaletteListener {
+
+    // the color was appended, it is at index in getColors()
+    void colorAdded(ColorPalette palette, int color, int index);
+
+    // the color was at index, the colors after it have moved down by one
+    void colorRemoved(ColorPalette palette, int color, int index);
+
+    // every nearest color may have changed, the colors and their indices did not
+    default void metricChanged(ColorPalette palette, DistanceMetric metric) {}
+
+}
@@ -1,86 +1,365 @@
 import org.jetbrains.annotations.NotNull;
 
 import java.awt.image.BufferedImage;
+import java.nio.ByteBuffer;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.locks.LockSupport;
 
 /**
- * This is not fast! Just a parallel implementation of the algorithm.
+ * Wavefront version of {@link ErrorDiffusionDither}: rows are dealt out to the threads round-robin and a row may
+ * only be at column x once the row above has finished column x + lag. The lag comes from the kernel, it is the
+ * distance after which the two rows can no longer touch the same pixel, and it also makes every pixel receive
+ * its error in the same order as in the sequential scan, so the output is bit-identical.
+ * <p>
+ * The worker threads are created once per instance and reused by every call, {@link #close()} stops them.
  */
+public class ParallelFSD implements ImageDither, AutoCloseable {
 
-public class ParallelFSD implements ImageDither {
+    // progress is published every BATCH columns, one write per cache line instead of one per pixel
+    private static final int BATCH = 32;
+    // an int per row would put 16 rows in the same cache line, each row gets a line of its own
+    private static final int PROGRESS_STRIDE = 16;
+    private static final int SPINS = 256;
+    private static final int YIELDS = 64;
+    private static final long MAX_PARK_NANOS = 50_000;
 
     private final int WIDTH;
     private final int HEIGHT;
+    private final DitherCanvas CANVAS;
     private final int THREAD_COUNT;
-    private final BufferedImage IMAGE;
-    private final int[] CANVAS;
     private final int[] LUT;
+    private final ColorLookup LOOKUP;
+    private final DiffusionKernel KERNEL;
+    private final int LAG;
+    private final int PADDING;
+    private final int STRIDE;
+    private final int[] WORKING;
+    private final AtomicIntegerArray PROGRESS;
+    private final CyclicBarrier LOADED;
+    private final ExecutorService EXECUTOR;
+    private final Worker[] WORKERS;
+    private final Future<?>[] FUTURES;
+    private volatile boolean failed;
+    // whether the workers time their waits this call, for a JFR event or DitherMetrics
+    private boolean timed;
+    // the buffer being dithered, if any, the workers see it through the executor like their own fields
+    private ByteBuffer buffer;
+    private PixelFormat format;
+    private int bufferStart;
+    private int bufferStride;
 
     public ParallelFSD(int width, int height, int @NotNull [] lut, int threadCount) {
+        this(width, height, lut, threadCount, DiffusionKernel.FLOYD_STEINBERG);
+    }
+
+    public ParallelFSD(int width, int height, int @NotNull [] lut, int threadCount, DiffusionKernel kernel) {
+        this(width, height, lut, null, threadCount, kernel);
         if (lut.length < 16777216) throw new IllegalArgumentException("LUT have atleast 16777216 elements.");
+    }
+
+    public ParallelFSD(int width, int height, @NotNull ColorLookup lookup, int threadCount) {
+        this(width, height, null, lookup, threadCount, DiffusionKernel.FLOYD_STEINBERG);
+    }
+
+    public ParallelFSD(int width, int height, @NotNull ColorLookup lookup, int threadCount, DiffusionKernel kernel) {
+        this(width, height, null, lookup, threadCount, kernel);
+    }
+
+    private ParallelFSD(int width, int height, int[] lut, ColorLookup lookup, int threadCount, DiffusionKernel kernel) {
+        if (threadCount <= 0) throw new IllegalArgumentException("Invalid thread count. Must be at least 1. (" + threadCount + ")");
         this.WIDTH = width;
         this.HEIGHT = height;
-        this.IMAGE = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
-        this.CANVAS = new int[width * height];
+        this.CANVAS = new DitherCanvas(width, height);
+        this.THREAD_COUNT = Math.min(threadCount, Math.max(1, height));
         this.LUT = lut;
-        this.THREAD_COUNT = threadCount;
+        this.LOOKUP = lookup;
+        this.KERNEL = kernel;
+        this.LAG = kernel.getLeft() + kernel.getRight() + 1;
+        this.PADDING = kernel.getLeft();
+        this.STRIDE = kernel.getLeft() + width + kernel.getRight();
+        // the rows below the image only soak up the error that falls off the bottom
+        this.WORKING = new int[(height + kernel.getRows() - 1) * STRIDE];
+        this.PROGRESS = new AtomicIntegerArray(height * PROGRESS_STRIDE);
+        this.LOADED = new CyclicBarrier(THREAD_COUNT);
+        this.WORKERS = new Worker[THREAD_COUNT];
+        for (int i = 0; i < THREAD_COUNT; i++) {
+            WORKERS[i] = new Worker(i);
+        }
+        this.FUTURES = new Future<?>[THREAD_COUNT];
+        this.EXECUTOR = THREAD_COUNT == 1 ? null : Executors.newFixedThreadPool(THREAD_COUNT - 1, runnable -> {
+            Thread thread = new Thread(runnable, "ParallelFSD-worker");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public DiffusionKernel getKernel() {
+        return KERNEL;
+    }
+
+    public int getThreadCount() {
+        return THREAD_COUNT;
+    }
+
+    public int getWidth() {
+        return WIDTH;
+    }
+
+    public int getHeight() {
+        return HEIGHT;
+    }
+
+    // every worker turns the rows it dithered into indices for an indexed target
+    public void setTarget(DitherTarget target) {
+        CANVAS.setTarget(target);
+    }
+
+    public BufferedImage dither(int[] raster) {
+        return run(raster, null, null);
     }
 
     public BufferedImage dither(byte[] raster) {
-        return null;
+        return run(null, raster, null);
     }
 
     public BufferedImage dither(BufferedImage image) {
-        return null;
+        return run(null, null, image);
     }
 
-    public BufferedImage dither(int[] raster) {
-        AtomicIntegerArray processedPixels = new AtomicIntegerArray(HEIGHT);
-        ExecutorService executorService = Executors.newFixedThreadPool(THREAD_COUNT);
-        for (int yStart = 0; yStart < THREAD_COUNT; yStart++) {
-            int finalYStart = yStart;
-            executorService.submit(() -> {
-                for (int y = finalYStart; y < HEIGHT; y += THREAD_COUNT) {
-                    for (int x = 0; x < WIDTH; x++)  {
-                        if (y == 0 || processedPixels.get(y - 1) == WIDTH) {
-                            doDither(raster, x, y, WIDTH, HEIGHT, LUT, CANVAS);
-                        } else {
-                            while(processedPixels.get(y - 1) - x < 3) {
-                                // do nothing
-                            }
-                            doDither(raster, x, y, WIDTH, HEIGHT, LUT, CANVAS);
-                        }
-                        processedPixels.set(y, processedPixels.incrementAndGet(y));
+    public BufferedImage dither(ByteBuffer buffer, PixelFormat format, int offset, int stride) {
+        Images.checkBuffer(buffer, format, offset, stride, WIDTH, HEIGHT);
+        this.buffer = buffer;
+        this.format = format;
+        this.bufferStart = offset;
+        this.bufferStride = stride;
+        try {
+            return run(null, null, null);
+        } finally {
+            this.buffer = null;
+            this.format = null;
+        }
+    }
+
+    @Override
+    public void close() {
+        if (EXECUTOR != null) {
+            EXECUTOR.shutdownNow();
+        }
+    }
+
+    private BufferedImage run(int[] pixels, byte[] bytes, BufferedImage image) {
+        DitherEvent event = DitherEvent.start();
+        CANVAS.pixels();
+        timed = event != null && (event.started != 0 || event.isEnabled());
+        if (LOOKUP != null) {
+            // a palette converts itself on first use, that must not happen on several workers at once
+            LOOKUP.findNearestColorRGB(0);
+        }
+        failed = false;
+        for (Worker worker : WORKERS) {
+            worker.pixels = pixels;
+            worker.bytes = bytes;
+            worker.image = image;
+            worker.waitNanos = 0;
+            worker.waits = 0;
+        }
+        for (int i = 1; i < THREAD_COUNT; i++) {
+            FUTURES[i] = EXECUTOR.submit(WORKERS[i]);
+        }
+        RuntimeException error = null;
+        try {
+            WORKERS[0].run();
+        } catch (RuntimeException e) {
+            error = e;
+        }
+        // every worker is waited for even when interrupted, they read the fields below until they are done
+        boolean interrupted = false;
+        for (int i = 1; i < THREAD_COUNT; i++) {
+            while (true) {
+                try {
+                    FUTURES[i].get();
+                } catch (ExecutionException e) {
+                    if (error == null || error instanceof CancellationException) {
+                        error = e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : new IllegalStateException(e.getCause());
                     }
+                } catch (InterruptedException e) {
+                    if (!interrupted) {
+                        interrupted = true;
+                        abort();
+                    }
+                    continue;
                 }
-            });
+                break;
+            }
+            FUTURES[i] = null;
         }
-        executorService.shutdown();
-        while (!executorService.isTerminated()) {
-
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+            if (error == null || error instanceof CancellationException) {
+                error = new CancellationException("Interrupted while waiting for the workers.");
+            }
+        }
+        for (Worker worker : WORKERS) {
+            worker.pixels = null;
+            worker.bytes = null;
+            worker.image = null;
         }
-        IMAGE.setRGB(0, 0, WIDTH, HEIGHT, CANVAS, 0, WIDTH);
-        return IMAGE;
+        if (error != null) {
+            LOADED.reset();
+            throw error;
+        }
+        long waitNanos = 0;
+        long waits = 0;
+        for (Worker worker : WORKERS) {
+            waitNanos += worker.waitNanos;
+            waits += worker.waits;
+        }
+        DitherMetrics.dithered(event, this, WIDTH, HEIGHT, KERNEL, THREAD_COUNT, waitNanos, waits);
+        return CANVAS.image();
+    }
+
+    // wakes up every worker that is waiting on another one
+    private void abort() {
+        failed = true;
+        LOADED.reset();
     }
 
-    private void doDither(int[] raster, int x, int y, int WIDTH, int HEIGHT, int[] LUT, int[] CANVAS) {
-        int[] quantizedErrors = findAndSetNearestColors(raster, y, WIDTH, x, LUT, null, CANVAS);
-        if (quantizedErrors[0] != 0 || quantizedErrors[1] != 0 || quantizedErrors[2] != 0) {
-            if (x < WIDTH - 1) {
-                distributeError(raster, WIDTH, x + 1, y, quantizedErrors[0], quantizedErrors[1], quantizedErrors[2], 7.0 / 16.0);
+    private final class Worker implements Runnable {
+
+        private final int INDEX;
+        private final int[] TARGETS = new int[KERNEL.getLength()];
+        private final int[] ROW_BUFFER = new int[WIDTH];
+        private final byte[] BYTE_BUFFER = new byte[WIDTH * 3];
+        private int[] pixels;
+        private byte[] bytes;
+        private BufferedImage image;
+        // time spent in awaitProgress() and how often the row above was not far enough, only counted when timed
+        private long waitNanos;
+        private int waits;
+
+        private Worker(int index) {
+            this.INDEX = index;
+        }
+
+        @Override
+        public void run() {
+            try {
+                for (int y = INDEX; y < HEIGHT; y += THREAD_COUNT) {
+                    loadRow(y);
+                    PROGRESS.setPlain(y * PROGRESS_STRIDE, 0);
+                }
+                try {
+                    LOADED.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new CancellationException("Interrupted while waiting for the other workers.");
+                } catch (BrokenBarrierException e) {
+                    throw new CancellationException("Another worker failed.");
+                }
+                for (int y = INDEX; y < HEIGHT; y += THREAD_COUNT) {
+                    ditherRow(y);
+                }
+            } catch (RuntimeException | Error e) {
+                abort();
+                throw e;
             }
-            if (y < HEIGHT - 1) {
-                if (x > 0) {
-                    distributeError(raster, WIDTH, x - 1, y + 1, quantizedErrors[0], quantizedErrors[1], quantizedErrors[2], 3.0 / 16.0);
+        }
+
+        private void loadRow(int y) {
+            int rowStart = (y * STRIDE) + PADDING;
+            if (pixels != null) {
+                int offset = y * WIDTH;
+                for (int x = 0; x < WIDTH; x++) {
+                    WORKING[rowStart + x] = pixels[offset + x] | 0xFF000000;
+                }
+            } else if (bytes != null) {
+                int bufferOffset = y * WIDTH * 3;
+                for (int x = 0; x < WIDTH; x++) {
+                    int red = bytes[bufferOffset + 2] & 0xFF;
+                    int green = bytes[bufferOffset + 1] & 0xFF;
+                    int blue = bytes[bufferOffset] & 0xFF;
+                    WORKING[rowStart + x] = (255 << 24) + (red << 16) + (green << 8) + blue;
+                    bufferOffset += 3;
+                }
+            } else if (buffer != null) {
+                Images.readRow(buffer, format, bufferStart + (y * bufferStride), WIDTH, WORKING, rowStart);
+            } else {
+                Images.readRow(image, y, WIDTH, ROW_BUFFER, BYTE_BUFFER);
+                for (int x = 0; x < WIDTH; x++) {
+                    WORKING[rowStart + x] = ROW_BUFFER[x] | 0xFF000000;
+                }
+            }
+        }
+
+        private void ditherRow(int y) {
+            KERNEL.targets(TARGETS, y, HEIGHT + KERNEL.getRows() - 1, STRIDE, PADDING);
+            int rowStart = (y * STRIDE) + PADDING;
+            int canvasOffset = y * WIDTH;
+            int progressIndex = y * PROGRESS_STRIDE;
+            int[] canvas = CANVAS.pixels();
+            // how far the row above is known to be, re-read only when that is not far enough
+            int available = y == 0 ? WIDTH : 0;
+            for (int x = 0; x < WIDTH; x++) {
+                int needed = Math.min(WIDTH, x + LAG);
+                if (available < needed) {
+                    available = awaitProgress(y - 1, needed);
+                }
+                int currentColor = WORKING[rowStart + x];
+                int nearestColor = LUT == null ? LOOKUP.findNearestColorRGB(currentColor) : LUT[~currentColor & 0xFFFFFF];
+                canvas[canvasOffset + x] = nearestColor;
+                int quantizationErrorR = ((currentColor >> 16) & 0xFF) - ((nearestColor >> 16) & 0xFF);
+                int quantizationErrorG = ((currentColor >> 8) & 0xFF) - ((nearestColor >> 8) & 0xFF);
+                int quantizationErrorB = (currentColor & 0xFF) - (nearestColor & 0xFF);
+                if (quantizationErrorR != 0 || quantizationErrorG != 0 || quantizationErrorB != 0) {
+                    KERNEL.spread(WORKING, TARGETS, x, quantizationErrorR, quantizationErrorG, quantizationErrorB);
                 }
-                distributeError(raster, WIDTH, x, y + 1, quantizedErrors[0], quantizedErrors[1], quantizedErrors[2], 5.0 / 16.0);
-                if (x < WIDTH - 1) {
-                    distributeError(raster, WIDTH, x + 1, y + 1, quantizedErrors[0], quantizedErrors[1], quantizedErrors[2], 1.0 / 16.0);
+                if ((x + 1) % BATCH == 0) {
+                    PROGRESS.setRelease(progressIndex, x + 1);
                 }
             }
+            PROGRESS.setRelease(progressIndex, WIDTH);
+            CANVAS.store(canvasOffset, WIDTH);
         }
+
+        // spins briefly, then yields, then parks for exponentially longer periods
+        private int awaitProgress(int row, int needed) {
+            int index = row * PROGRESS_STRIDE;
+            int progress = PROGRESS.getAcquire(index);
+            if (progress >= needed) {
+                return progress;
+            }
+            long waitStart = timed ? System.nanoTime() : 0;
+            int attempts = 0;
+            long parkNanos = 1_000;
+            while (progress < needed) {
+                if (failed) {
+                    throw new CancellationException("Another worker failed.");
+                }
+                if (attempts < SPINS) {
+                    Thread.onSpinWait();
+                } else if (attempts < SPINS + YIELDS) {
+                    Thread.yield();
+                } else {
+                    LockSupport.parkNanos(parkNanos);
+                    parkNanos = Math.min(MAX_PARK_NANOS, parkNanos * 2);
+                }
+                attempts++;
+                progress = PROGRESS.getAcquire(index);
+            }
+            if (timed) {
+                waitNanos += System.nanoTime() - waitStart;
+                waits++;
+            }
+            return progress;
+        }
+
     }
 
 }
@@ -0,0 +1,41 @@
+// byte layouts of packed 8-bit pixels, named in memory order: BGR is blue, green, red at increasing addresses
+
+public enum PixelFormat {
+
+    BGR(3, 2, 1, 0),
+    RGB(3, 0, 1, 2),
+    BGRA(4, 2, 1, 0),
+    RGBA(4, 0, 1, 2),
+    ARGB(4, 1, 2, 3),
+    ABGR(4, 3, 2, 1);
+
+    private final int BYTES_PER_PIXEL;
+    private final int RED;
+    private final int GREEN;
+    private final int BLUE;
+
+    PixelFormat(int bytesPerPixel, int red, int green, int blue) {
+        this.BYTES_PER_PIXEL = bytesPerPixel;
+        this.RED = red;
+        this.GREEN = green;
+        this.BLUE = blue;
+    }
+
+    public int getBytesPerPixel() {
+        return BYTES_PER_PIXEL;
+    }
+
+    // where the channels are within a pixel, alpha is never read
+    public int getRedOffset() {
+        return RED;
+    }
+
+    public int getGreenOffset() {
+        return GREEN;
+    }
+
+    public int getBlueOffset() {
+        return BLUE;
+    }
+
+}
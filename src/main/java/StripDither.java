@@ -0,0 +1,165 @@
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.io.IOException;
+
+/**
+ * Dithers images that do not fit in memory. The source is read through an {@link ImageReader} in horizontal strips
+ * of {@code stripHeight} rows, only the kernel's rows of error are kept between them, and every finished strip is
+ * handed to a {@link Sink} or written into an {@link ImageWriter} before the next one is dithered. Memory grows with
+ * the width of the image, not its area; the output is the same as {@link ErrorDiffusionDither}'s.
+ * <p>
+ * How fast a region is read depends on the format: TIFF reads only the strips or tiles a region covers, while
+ * readers that can not seek within the image data, e.g. PNG, decode from the top again for every strip. Writing
+ * needs a writer that can replace pixels of an empty image, of the JDK's writers only TIFF can.
+ */
+public class StripDither {
+
+    private final int[] LUT;
+    private final ColorLookup LOOKUP;
+    private final DiffusionKernel KERNEL;
+    private final int STRIP_HEIGHT;
+    private final int ROWS;
+    private final int PADDING;
+    private final int[] TARGETS;
+
+    public StripDither(int[] lut, DiffusionKernel kernel, int stripHeight) {
+        this(lut, null, kernel, stripHeight);
+        if (lut.length < 16777216) throw new IllegalArgumentException("LUT have atleast 16777216 elements.");
+    }
+
+    public StripDither(ColorLookup lookup, DiffusionKernel kernel, int stripHeight) {
+        this(null, lookup, kernel, stripHeight);
+    }
+
+    private StripDither(int[] lut, ColorLookup lookup, DiffusionKernel kernel, int stripHeight) {
+        if (stripHeight <= 0) throw new IllegalArgumentException("Strips must be at least 1 row high. (" + stripHeight + ")");
+        this.LUT = lut;
+        this.LOOKUP = lookup;
+        this.KERNEL = kernel;
+        this.STRIP_HEIGHT = stripHeight;
+        this.ROWS = kernel.getRows();
+        this.PADDING = kernel.getLeft();
+        this.TARGETS = new int[kernel.getLength()];
+    }
+
+    public DiffusionKernel getKernel() {
+        return KERNEL;
+    }
+
+    public int getStripHeight() {
+        return STRIP_HEIGHT;
+    }
+
+    /**
+     * Dithers the first image of the reader's input strip by strip.
+     *
+     * @param reader a reader whose input is set
+     */
+    public void dither(ImageReader reader, Sink sink) throws IOException {
+        DitherEvent event = DitherEvent.start();
+        int width = reader.getWidth(0);
+        int height = reader.getHeight(0);
+        int stride = KERNEL.getLeft() + width + KERNEL.getRight();
+        // the working rows, one plane per channel
+        int[] red = new int[ROWS * stride];
+        int[] green = new int[ROWS * stride];
+        int[] blue = new int[ROWS * stride];
+        int[] rowBuffer = new int[width];
+        byte[] byteBuffer = new byte[width * 3];
+        int[] output = new int[width * Math.min(STRIP_HEIGHT, height)];
+        ImageReadParam param = reader.getDefaultReadParam();
+        // the input strip the next row to load is in, the reader fills it again for every strip
+        BufferedImage strip = null;
+        int stripStart = 0;
+        int stripEnd = 0;
+        for (int y = 0; y < height + ROWS - 1; y++) {
+            if (y < height) {
+                if (y >= stripEnd) {
+                    stripStart = y;
+                    stripEnd = Math.min(height, y + STRIP_HEIGHT);
+                    param.setSourceRegion(new Rectangle(0, stripStart, width, stripEnd - stripStart));
+                    param.setDestination(strip);
+                    strip = reader.read(0, param);
+                }
+                Images.readRow(strip, y - stripStart, width, rowBuffer, byteBuffer);
+                int rowStart = ((y % ROWS) * stride) + PADDING;
+                for (int x = 0; x < width; x++) {
+                    int pixel = rowBuffer[x];
+                    red[rowStart + x] = (pixel >> 16) & 0xFF;
+                    green[rowStart + x] = (pixel >> 8) & 0xFF;
+                    blue[rowStart + x] = pixel & 0xFF;
+                }
+            }
+            // the row that just got its last row of error from the kernel
+            int ditheredRow = y - ROWS + 1;
+            if (ditheredRow >= 0) {
+                int outputRow = ditheredRow % STRIP_HEIGHT;
+                ditherRow(red, green, blue, stride, width, ditheredRow, output, outputRow * width);
+                if (outputRow == STRIP_HEIGHT - 1 || ditheredRow == height - 1) {
+                    sink.accept(ditheredRow - outputRow, output, width, outputRow + 1);
+                }
+            }
+        }
+        DitherMetrics.dithered(event, this, width, height, KERNEL, 1, 0, 0);
+    }
+
+    /**
+     * Dithers the first image of the reader's input into the writer's output, as a TYPE_INT_RGB image.
+     *
+     * @param writer a writer whose output is set and that can write an empty image and replace its pixels
+     */
+    public void dither(ImageReader reader, ImageWriter writer) throws IOException {
+        if (!writer.canWriteEmpty()) throw new IllegalArgumentException("The writer can not write images strip by strip. (" + writer.getOriginatingProvider().getFormatNames()[0] + ")");
+        int width = reader.getWidth(0);
+        int height = reader.getHeight(0);
+        writer.prepareWriteEmpty(null, ImageTypeSpecifier.createFromBufferedImageType(BufferedImage.TYPE_INT_RGB), width, height, null, null, null);
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        DirectColorModel colorModel = new DirectColorModel(24, 0x00FF0000, 0x0000FF00, 0x000000FF);
+        dither(reader, (y, pixels, stripWidth, stripHeight) -> {
+            // the strip is written from the output array as it is, without copying it
+            DataBufferInt buffer = new DataBufferInt(pixels, stripWidth * stripHeight);
+            WritableRaster raster = Raster.createPackedRaster(buffer, stripWidth, stripHeight, stripWidth, colorModel.getMasks(), null);
+            writer.prepareReplacePixels(0, new Rectangle(0, y, stripWidth, stripHeight));
+            param.setDestinationOffset(new Point(0, y));
+            writer.replacePixels(new BufferedImage(colorModel, raster, false, null), param);
+            writer.endReplacePixels();
+        });
+        writer.endWriteEmpty();
+    }
+
+    private void ditherRow(int[] red, int[] green, int[] blue, int stride, int width, int y, int[] output, int outputOffset) {
+        KERNEL.targets(TARGETS, y, ROWS, stride, PADDING);
+        int rowStart = ((y % ROWS) * stride) + PADDING;
+        for (int x = 0; x < width; x++) {
+            int currentColor = 0xFF000000 | (red[rowStart + x] << 16) | (green[rowStart + x] << 8) | blue[rowStart + x];
+            int nearestColor = LUT == null ? LOOKUP.findNearestColorRGB(currentColor) : LUT[~currentColor & 0xFFFFFF];
+            output[outputOffset + x] = nearestColor;
+            int quantizationErrorR = red[rowStart + x] - ((nearestColor >> 16) & 0xFF);
+            int quantizationErrorG = green[rowStart + x] - ((nearestColor >> 8) & 0xFF);
+            int quantizationErrorB = blue[rowStart + x] - (nearestColor & 0xFF);
+            if (quantizationErrorR != 0 || quantizationErrorG != 0 || quantizationErrorB != 0) {
+                KERNEL.spread(red, green, blue, TARGETS, x, quantizationErrorR, quantizationErrorG, quantizationErrorB);
+            }
+        }
+    }
+
+    // takes the finished strips from top to bottom
+    @FunctionalInterface
+    public interface Sink {
+
+        // height rows of packed RGB from row y on, the array is reused for the next strip
+        void accept(int y, int[] pixels, int width, int height) throws IOException;
+
+    }
+
+}
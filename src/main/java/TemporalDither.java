@@ -0,0 +1,273 @@
+import java.awt.image.BufferedImage;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Error diffusion for video, where most of a frame is often the same as the one before. Error only flows down and
+ * to the right, so every row above the first changed one dithers exactly like in the previous frame and is kept
+ * as it is. The rows just above the change still spread error into it: their quantization errors are stored, and
+ * are applied again to the new rows in the original order before dithering resumes, so the output is the same as
+ * dithering the whole frame.
+ * <p>
+ * {@link #setBlockReuse(int)} trades that exactness for speed below the first change as well: blocks whose pixels
+ * did not change keep their previous output, no error is spread into or out of them.
+ */
+public class TemporalDither implements ImageDither {
+
+    private final int WIDTH;
+    private final int HEIGHT;
+    private final DitherCanvas CANVAS;
+    private final int[] LUT;
+    private final ColorLookup LOOKUP;
+    private final DiffusionKernel KERNEL;
+    private final int ROWS;
+    private final int PADDING;
+    private final int STRIDE;
+    // the working rows, one plane per channel
+    private final int[] RED;
+    private final int[] GREEN;
+    private final int[] BLUE;
+    private final int[] ROW_BUFFER;
+    private final byte[] BYTE_BUFFER;
+    private final int[] TARGETS;
+    // the quantization error of every pixel in the last frame, 10 bits per channel
+    private final int[] ERRORS;
+    private int[] current;
+    private int[] previous;
+    private boolean previousValid = false;
+    private int blockSize = 0;
+    private boolean[] changedBlocks;
+    private int blockColumns;
+    private int reusedRows;
+
+    public TemporalDither(int width, int height, int[] lut, DiffusionKernel kernel) {
+        this(width, height, lut, null, kernel);
+        if (lut.length < 16777216) throw new IllegalArgumentException("LUT have atleast 16777216 elements.");
+    }
+
+    public TemporalDither(int width, int height, ColorLookup lookup, DiffusionKernel kernel) {
+        this(width, height, null, lookup, kernel);
+    }
+
+    private TemporalDither(int width, int height, int[] lut, ColorLookup lookup, DiffusionKernel kernel) {
+        this.WIDTH = width;
+        this.HEIGHT = height;
+        this.CANVAS = new DitherCanvas(width, height);
+        this.LUT = lut;
+        this.LOOKUP = lookup;
+        this.KERNEL = kernel;
+        this.ROWS = kernel.getRows();
+        this.PADDING = kernel.getLeft();
+        this.STRIDE = kernel.getLeft() + width + kernel.getRight();
+        this.RED = new int[ROWS * STRIDE];
+        this.GREEN = new int[ROWS * STRIDE];
+        this.BLUE = new int[ROWS * STRIDE];
+        this.ROW_BUFFER = new int[width];
+        this.BYTE_BUFFER = new byte[width * 3];
+        this.TARGETS = new int[kernel.getLength()];
+        this.ERRORS = new int[width * height];
+        this.current = new int[width * height];
+        this.previous = new int[width * height];
+    }
+
+    public DiffusionKernel getKernel() {
+        return KERNEL;
+    }
+
+    /**
+     * @param blockSize side of the blocks that are compared below the first changed row, 0 turns block reuse off
+     *                  and makes the output exact again
+     */
+    public void setBlockReuse(int blockSize) {
+        if (blockSize < 0) throw new IllegalArgumentException("Block size can not be negative. (" + blockSize + ")");
+        this.blockSize = blockSize;
+        if (blockSize > 0) {
+            blockColumns = (WIDTH + blockSize - 1) / blockSize;
+            changedBlocks = new boolean[((HEIGHT + blockSize - 1) / blockSize) * blockColumns];
+        } else {
+            changedBlocks = null;
+        }
+        reset();
+    }
+
+    public int getWidth() {
+        return WIDTH;
+    }
+
+    public int getHeight() {
+        return HEIGHT;
+    }
+
+    /**
+     * Rows that are reused are not written again, a caller's array or image has to be left as the last frame
+     * left it. Changing the target dithers the next frame in full.
+     */
+    public void setTarget(DitherTarget target) {
+        CANVAS.setTarget(target);
+        reset();
+    }
+
+    // the next frame is dithered in full, e.g. after a cut in the video
+    public void reset() {
+        previousValid = false;
+    }
+
+    // rows of the last frame that were kept from the frame before
+    public int getReusedRows() {
+        return reusedRows;
+    }
+
+    public BufferedImage dither(int[] raster) {
+        DitherEvent event = DitherEvent.start();
+        for (int i = 0; i < WIDTH * HEIGHT; i++) {
+            current[i] = raster[i] | 0xFF000000;
+        }
+        return ditherCurrent(event);
+    }
+
+    // byte rasters are in BGR order
+    public BufferedImage dither(byte[] raster) {
+        DitherEvent event = DitherEvent.start();
+        int bufferOffset = 0;
+        for (int i = 0; i < WIDTH * HEIGHT; i++) {
+            int red = raster[bufferOffset + 2] & 0xFF;
+            int green = raster[bufferOffset + 1] & 0xFF;
+            int blue = raster[bufferOffset] & 0xFF;
+            current[i] = (255 << 24) + (red << 16) + (green << 8) + blue;
+            bufferOffset += 3;
+        }
+        return ditherCurrent(event);
+    }
+
+    public BufferedImage dither(BufferedImage image) {
+        DitherEvent event = DitherEvent.start();
+        for (int y = 0; y < HEIGHT; y++) {
+            Images.readRow(image, y, WIDTH, ROW_BUFFER, BYTE_BUFFER);
+            int offset = y * WIDTH;
+            for (int x = 0; x < WIDTH; x++) {
+                current[offset + x] = ROW_BUFFER[x] | 0xFF000000;
+            }
+        }
+        return ditherCurrent(event);
+    }
+
+    public BufferedImage dither(ByteBuffer buffer, PixelFormat format, int offset, int stride) {
+        DitherEvent event = DitherEvent.start();
+        Images.checkBuffer(buffer, format, offset, stride, WIDTH, HEIGHT);
+        for (int y = 0; y < HEIGHT; y++) {
+            Images.readRow(buffer, format, offset + (y * stride), WIDTH, current, y * WIDTH);
+        }
+        return ditherCurrent(event);
+    }
+
+    private BufferedImage ditherCurrent(DitherEvent event) {
+        int firstChangedRow = 0;
+        if (previousValid) {
+            int mismatch = Arrays.mismatch(current, previous);
+            firstChangedRow = mismatch < 0 ? HEIGHT : mismatch / WIDTH;
+        }
+        reusedRows = firstChangedRow;
+        if (firstChangedRow < HEIGHT) {
+            boolean reuseBlocks = previousValid && blockSize > 0;
+            if (reuseBlocks) {
+                compareBlocks(firstChangedRow);
+            }
+            for (int y = firstChangedRow; y < firstChangedRow + ROWS - 1 && y < HEIGHT; y++) {
+                loadRow(y);
+            }
+            replayErrors(firstChangedRow);
+            for (int y = firstChangedRow; y < HEIGHT; y++) {
+                int nextRow = y + ROWS - 1;
+                if (nextRow < HEIGHT) {
+                    loadRow(nextRow);
+                }
+                ditherRow(y, reuseBlocks);
+            }
+        }
+        int[] swap = previous;
+        previous = current;
+        current = swap;
+        previousValid = true;
+        DitherMetrics.dithered(event, this, WIDTH, HEIGHT, KERNEL, 1, 0, 0);
+        return CANVAS.image();
+    }
+
+    // the error the rows above firstRow spread into it and the rows below, in the order it was spread originally
+    private void replayErrors(int firstRow) {
+        for (int y = Math.max(0, firstRow - ROWS + 1); y < firstRow; y++) {
+            KERNEL.targets(TARGETS, y, ROWS, STRIDE, PADDING);
+            int errorOffset = y * WIDTH;
+            for (int x = 0; x < WIDTH; x++) {
+                int error = ERRORS[errorOffset + x];
+                if (error == 0) {
+                    continue;
+                }
+                int quantizationErrorR = (error << 2) >> 22;
+                int quantizationErrorG = (error << 12) >> 22;
+                int quantizationErrorB = (error << 22) >> 22;
+                KERNEL.spreadBelow(RED, GREEN, BLUE, TARGETS, x, quantizationErrorR, quantizationErrorG, quantizationErrorB, firstRow - y);
+            }
+        }
+    }
+
+    // which blocks from firstRow's block row on have pixels that differ from the previous frame
+    private void compareBlocks(int firstRow) {
+        for (int blockRow = firstRow / blockSize; blockRow * blockSize < HEIGHT; blockRow++) {
+            int top = blockRow * blockSize;
+            int bottom = Math.min(HEIGHT, top + blockSize);
+            for (int blockColumn = 0; blockColumn < blockColumns; blockColumn++) {
+                int left = blockColumn * blockSize;
+                int right = Math.min(WIDTH, left + blockSize);
+                boolean changed = false;
+                for (int y = top; y < bottom && !changed; y++) {
+                    int offset = y * WIDTH;
+                    changed = !Arrays.equals(current, offset + left, offset + right, previous, offset + left, offset + right);
+                }
+                changedBlocks[(blockRow * blockColumns) + blockColumn] = changed;
+            }
+        }
+    }
+
+    private void loadRow(int y) {
+        int rowStart = ((y % ROWS) * STRIDE) + PADDING;
+        int offset = y * WIDTH;
+        for (int x = 0; x < WIDTH; x++) {
+            int pixel = current[offset + x];
+            RED[rowStart + x] = (pixel >> 16) & 0xFF;
+            GREEN[rowStart + x] = (pixel >> 8) & 0xFF;
+            BLUE[rowStart + x] = pixel & 0xFF;
+        }
+    }
+
+    private void ditherRow(int y, boolean reuseBlocks) {
+        KERNEL.targets(TARGETS, y, ROWS, STRIDE, PADDING);
+        int rowStart = ((y % ROWS) * STRIDE) + PADDING;
+        int canvasOffset = y * WIDTH;
+        int blockOffset = reuseBlocks ? (y / blockSize) * blockColumns : 0;
+        int[] canvas = CANVAS.pixels();
+        for (int x = 0; x < WIDTH; x++) {
+            if (reuseBlocks && !changedBlocks[blockOffset + (x / blockSize)]) {
+                // the canvas still holds this block from the previous frame
+                x = Math.min(WIDTH, ((x / blockSize) + 1) * blockSize) - 1;
+                continue;
+            }
+            int red = RED[rowStart + x];
+            int green = GREEN[rowStart + x];
+            int blue = BLUE[rowStart + x];
+            int currentColor = 0xFF000000 | (red << 16) | (green << 8) | blue;
+            int nearestColor = LUT == null ? LOOKUP.findNearestColorRGB(currentColor) : LUT[~currentColor & 0xFFFFFF];
+            canvas[canvasOffset + x] = nearestColor;
+            int quantizationErrorR = red - ((nearestColor >> 16) & 0xFF);
+            int quantizationErrorG = green - ((nearestColor >> 8) & 0xFF);
+            int quantizationErrorB = blue - (nearestColor & 0xFF);
+            if (quantizationErrorR != 0 || quantizationErrorG != 0 || quantizationErrorB != 0) {
+                ERRORS[canvasOffset + x] = ((quantizationErrorR & 0x3FF) << 20) | ((quantizationErrorG & 0x3FF) << 10) | (quantizationErrorB & 0x3FF);
+                KERNEL.spread(RED, GREEN, BLUE, TARGETS, x, quantizationErrorR, quantizationErrorG, quantizationErrorB);
+            } else {
+                ERRORS[canvasOffset + x] = 0;
+            }
+        }
+        CANVAS.store(canvasOffset, WIDTH);
+    }
+
+}
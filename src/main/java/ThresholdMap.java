@@ -0,0 +1,226 @@
+import java.awt.image.BufferedImage;
+import java.util.Random;
+
+// the thresholds of an ordered dither, a tile that repeats over the image; every cell is a level from 0 to levels - 1
+
+public class ThresholdMap {
+
+    // the spread of the gaussian blue noise is generated with, in cells
+    private static final double BLUE_NOISE_SIGMA = 1.5;
+    // share of the cells the blue noise starts from
+    private static final double BLUE_NOISE_SEED_SHARE = 0.1;
+
+    private final String NAME;
+    private final int WIDTH;
+    private final int HEIGHT;
+    private final int[] LEVELS;
+    private final int LEVEL_COUNT;
+
+    /**
+     * @param levels row after row, each from 0 to levelCount - 1. A cell's threshold is the middle of its level,
+     *               (level + 0.5) / levelCount, so the thresholds average out to one half.
+     */
+    public ThresholdMap(String name, int width, int height, int[] levels, int levelCount) {
+        if (width <= 0 || height <= 0) throw new IllegalArgumentException("A map must be at least 1x1. (" + width + "x" + height + ")");
+        if (levels.length != width * height) throw new IllegalArgumentException("Expected " + (width * height) + " levels for a " + width + "x" + height + " map. (" + levels.length + ")");
+        if (levelCount <= 0) throw new IllegalArgumentException("A map needs at least one level. (" + levelCount + ")");
+        for (int level : levels) {
+            if (level < 0 || level >= levelCount) throw new IllegalArgumentException("Levels must be between 0 and " + (levelCount - 1) + ". (" + level + ")");
+        }
+        this.NAME = name;
+        this.WIDTH = width;
+        this.HEIGHT = height;
+        this.LEVELS = levels.clone();
+        this.LEVEL_COUNT = levelCount;
+    }
+
+    /**
+     * The Bayer matrix of the given size, a power of two from 2 to 256. Every level appears once and each one is
+     * as far from the levels before it as the grid allows, which gives the regular crosshatch pattern.
+     */
+    public static ThresholdMap bayer(int size) {
+        if (size < 2 || size > 256 || Integer.bitCount(size) != 1) throw new IllegalArgumentException("Bayer matrices are a power of two from 2 to 256. (" + size + ")");
+        int[] levels = new int[]{0};
+        // M(2n) = [4 M, 4 M + 2; 4 M + 3, 4 M + 1]
+        for (int n = 1; n < size; n *= 2) {
+            int[] next = new int[4 * n * n];
+            for (int y = 0; y < n; y++) {
+                for (int x = 0; x < n; x++) {
+                    int level = 4 * levels[(y * n) + x];
+                    next[(y * 2 * n) + x] = level;
+                    next[(y * 2 * n) + x + n] = level + 2;
+                    next[((y + n) * 2 * n) + x] = level + 3;
+                    next[((y + n) * 2 * n) + x + n] = level + 1;
+                }
+            }
+            levels = next;
+        }
+        return new ThresholdMap("Bayer " + size + "x" + size, size, size, levels, size * size);
+    }
+
+    /**
+     * A tileable blue noise texture from Ulichney's void-and-cluster method, the same seed gives the same texture.
+     * It has no visible pattern, unlike a Bayer matrix, at the cost of generating it: a 64x64 texture takes a few
+     * hundred milliseconds, so create it once and share it.
+     */
+    public static ThresholdMap blueNoise(int size, long seed) {
+        if (size < 4 || size > 256) throw new IllegalArgumentException("Blue noise textures are 4x4 to 256x256. (" + size + ")");
+        return new ThresholdMap("Blue noise " + size + "x" + size, size, size, new VoidAndCluster(size, seed).rank(), size * size);
+    }
+
+    /**
+     * A threshold texture from an image, e.g. a published blue noise texture. The levels are the red channel, so
+     * a gray image gives 256 levels.
+     */
+    public static ThresholdMap fromImage(String name, BufferedImage image) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int[] levels = image.getRGB(0, 0, width, height, null, 0, width);
+        for (int i = 0; i < levels.length; i++) {
+            levels[i] = (levels[i] >> 16) & 0xFF;
+        }
+        return new ThresholdMap(name, width, height, levels, 256);
+    }
+
+    public String getName() {
+        return NAME;
+    }
+
+    public int getWidth() {
+        return WIDTH;
+    }
+
+    public int getHeight() {
+        return HEIGHT;
+    }
+
+    public int getLevelCount() {
+        return LEVEL_COUNT;
+    }
+
+    public int getLevel(int x, int y) {
+        return LEVELS[(Math.floorMod(y, HEIGHT) * WIDTH) + Math.floorMod(x, WIDTH)];
+    }
+
+    // between 0 and 1, the map repeats in both directions
+    public double getThreshold(int x, int y) {
+        return (getLevel(x, y) + 0.5) / LEVEL_COUNT;
+    }
+
+    @Override
+    public String toString() {
+        return NAME;
+    }
+
+    // ranks the cells of a size x size torus so that every prefix of the ranking is as evenly spread as it can be
+    private static final class VoidAndCluster {
+
+        private final int SIZE;
+        private final int COUNT;
+        // the gaussian of every offset on the torus, energy is the sum of it over the set cells
+        private final double[] WEIGHTS;
+        private final boolean[] SET;
+        private final double[] ENERGY;
+        private final Random RANDOM;
+
+        private VoidAndCluster(int size, long seed) {
+            this.SIZE = size;
+            this.COUNT = size * size;
+            this.WEIGHTS = new double[COUNT];
+            this.SET = new boolean[COUNT];
+            this.ENERGY = new double[COUNT];
+            this.RANDOM = new Random(seed);
+            for (int dy = 0; dy < size; dy++) {
+                for (int dx = 0; dx < size; dx++) {
+                    int wrappedX = Math.min(dx, size - dx);
+                    int wrappedY = Math.min(dy, size - dy);
+                    WEIGHTS[(dy * size) + dx] = Math.exp(-((wrappedX * wrappedX) + (wrappedY * wrappedY)) / (2 * BLUE_NOISE_SIGMA * BLUE_NOISE_SIGMA));
+                }
+            }
+        }
+
+        private int[] rank() {
+            int seeds = Math.max(1, (int) (COUNT * BLUE_NOISE_SEED_SHARE));
+            while (countSet() < seeds) {
+                int cell = RANDOM.nextInt(COUNT);
+                if (!SET[cell]) {
+                    toggle(cell);
+                }
+            }
+            // moves the tightest cluster into the largest void until that changes nothing
+            while (true) {
+                int cluster = tightestCluster();
+                toggle(cluster);
+                int vacancy = largestVoid();
+                toggle(vacancy);
+                if (vacancy == cluster) {
+                    break;
+                }
+            }
+            boolean[] initial = SET.clone();
+            double[] initialEnergy = ENERGY.clone();
+            int[] ranks = new int[COUNT];
+            // the seeds are ranked by taking the tightest cluster away first
+            for (int rank = seeds - 1; rank >= 0; rank--) {
+                int cluster = tightestCluster();
+                toggle(cluster);
+                ranks[cluster] = rank;
+            }
+            // the rest by filling the largest void. Past half the cells this is the tightest cluster of the unset
+            // cells, whose energy is the total minus this one
+            System.arraycopy(initial, 0, SET, 0, COUNT);
+            System.arraycopy(initialEnergy, 0, ENERGY, 0, COUNT);
+            for (int rank = seeds; rank < COUNT; rank++) {
+                int vacancy = largestVoid();
+                toggle(vacancy);
+                ranks[vacancy] = rank;
+            }
+            return ranks;
+        }
+
+        private int countSet() {
+            int count = 0;
+            for (boolean set : SET) {
+                count += set ? 1 : 0;
+            }
+            return count;
+        }
+
+        // the set cell with the highest energy, the lowest index on a tie
+        private int tightestCluster() {
+            int best = -1;
+            for (int i = 0; i < COUNT; i++) {
+                if (SET[i] && (best < 0 || ENERGY[i] > ENERGY[best])) {
+                    best = i;
+                }
+            }
+            return best;
+        }
+
+        // the unset cell with the lowest energy
+        private int largestVoid() {
+            int best = -1;
+            for (int i = 0; i < COUNT; i++) {
+                if (!SET[i] && (best < 0 || ENERGY[i] < ENERGY[best])) {
+                    best = i;
+                }
+            }
+            return best;
+        }
+
+        private void toggle(int cell) {
+            SET[cell] = !SET[cell];
+            double sign = SET[cell] ? 1 : -1;
+            int cellX = cell % SIZE;
+            int cellY = cell / SIZE;
+            for (int y = 0; y < SIZE; y++) {
+                int rowOffset = ((y - cellY + SIZE) % SIZE) * SIZE;
+                for (int x = 0; x < SIZE; x++) {
+                    ENERGY[(y * SIZE) + x] += sign * WEIGHTS[rowOffset + ((x - cellX + SIZE) % SIZE)];
+                }
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,402 @@
+import java.awt.image.BufferedImage;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Approximate parallel dithering: the image is cut into tiles that are dithered independently by any
+ * sequential {@link ImageDither}, without any synchronization between the threads. The output is not the
+ * sequential result. To hide the seams every tile is dithered together with a margin of {@code overlap}
+ * pixels above and to the left of it, which is thrown away afterwards, so the error coming into the tile
+ * has mostly settled. Use a tile width equal to the image width for horizontal bands.
+ * <p>
+ * {@link #compare(int[])} measures how far the result is from the exact one.
+ */
+public class TiledDither implements ImageDither, AutoCloseable {
+
+    private final int WIDTH;
+    private final int HEIGHT;
+    private final DitherCanvas CANVAS;
+    private final int TILE_WIDTH;
+    private final int TILE_HEIGHT;
+    private final int OVERLAP;
+    private final int THREAD_COUNT;
+    private final int TILES_X;
+    private final int TILE_COUNT;
+    private final DitherFactory FACTORY;
+    private final Worker[] WORKERS;
+    private final Future<?>[] FUTURES;
+    private final AtomicInteger NEXT_TILE = new AtomicInteger();
+    private final ExecutorService EXECUTOR;
+    private ImageDither exact;
+    // set on the first failure or interrupt, the workers take no tiles after it
+    private volatile boolean failed;
+    // the buffer being dithered, if any, the workers see it through the executor like their own fields
+    private ByteBuffer buffer;
+    private PixelFormat format;
+    private int bufferStart;
+    private int bufferStride;
+
+    public TiledDither(int width, int height, DitherFactory factory, int tileWidth, int tileHeight, int overlap, int threadCount) {
+        if (tileWidth <= 0 || tileHeight <= 0) throw new IllegalArgumentException("Tiles must be at least 1x1. (" + tileWidth + "x" + tileHeight + ")");
+        if (overlap < 0) throw new IllegalArgumentException("Overlap can not be negative. (" + overlap + ")");
+        if (threadCount <= 0) throw new IllegalArgumentException("Invalid thread count. Must be at least 1. (" + threadCount + ")");
+        this.WIDTH = width;
+        this.HEIGHT = height;
+        this.CANVAS = new DitherCanvas(width, height);
+        this.TILE_WIDTH = Math.min(tileWidth, width);
+        this.TILE_HEIGHT = Math.min(tileHeight, height);
+        this.OVERLAP = overlap;
+        this.TILES_X = (width + TILE_WIDTH - 1) / TILE_WIDTH;
+        this.TILE_COUNT = TILES_X * ((height + TILE_HEIGHT - 1) / TILE_HEIGHT);
+        this.THREAD_COUNT = Math.min(threadCount, TILE_COUNT);
+        this.FACTORY = factory;
+        this.WORKERS = new Worker[THREAD_COUNT];
+        for (int i = 0; i < THREAD_COUNT; i++) {
+            WORKERS[i] = new Worker();
+        }
+        this.FUTURES = new Future<?>[THREAD_COUNT];
+        this.EXECUTOR = THREAD_COUNT == 1 ? null : Executors.newFixedThreadPool(THREAD_COUNT - 1, runnable -> {
+            Thread thread = new Thread(runnable, "TiledDither-worker");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public int getTileWidth() {
+        return TILE_WIDTH;
+    }
+
+    public int getTileHeight() {
+        return TILE_HEIGHT;
+    }
+
+    public int getOverlap() {
+        return OVERLAP;
+    }
+
+    public int getThreadCount() {
+        return THREAD_COUNT;
+    }
+
+    public int getWidth() {
+        return WIDTH;
+    }
+
+    public int getHeight() {
+        return HEIGHT;
+    }
+
+    // the cores of the tiles are copied into the target, the tile instances keep their own images
+    public void setTarget(DitherTarget target) {
+        CANVAS.setTarget(target);
+    }
+
+    public BufferedImage dither(int[] raster) {
+        return run(raster, null, null);
+    }
+
+    public BufferedImage dither(byte[] raster) {
+        return run(null, raster, null);
+    }
+
+    public BufferedImage dither(BufferedImage image) {
+        return run(null, null, image);
+    }
+
+    // the regions of the tiles are read from the buffer directly
+    public BufferedImage dither(ByteBuffer buffer, PixelFormat format, int offset, int stride) {
+        Images.checkBuffer(buffer, format, offset, stride, WIDTH, HEIGHT);
+        this.buffer = buffer;
+        this.format = format;
+        this.bufferStart = offset;
+        this.bufferStride = stride;
+        try {
+            return run(null, null, null);
+        } finally {
+            this.buffer = null;
+            this.format = null;
+        }
+    }
+
+    /**
+     * Dithers the raster both tiled and with a single sequential instance from the factory and compares the two.
+     * This is a measurement, it costs a full sequential pass.
+     */
+    public Quality compare(int[] raster) {
+        if (exact == null) {
+            exact = FACTORY.create(WIDTH, HEIGHT);
+        }
+        int[] tiled = dither(raster).getRGB(0, 0, WIDTH, HEIGHT, null, 0, WIDTH);
+        int[] sequential = exact.dither(raster).getRGB(0, 0, WIDTH, HEIGHT, null, 0, WIDTH);
+        return Quality.measure(tiled, sequential, WIDTH, HEIGHT);
+    }
+
+    // also closes the instances the tiles were dithered with
+    @Override
+    public void close() {
+        if (EXECUTOR != null) {
+            EXECUTOR.shutdownNow();
+        }
+        for (Worker worker : WORKERS) {
+            for (ImageDither dither : worker.DITHERS.values()) {
+                close(dither);
+            }
+            worker.DITHERS.clear();
+        }
+        if (exact != null) {
+            close(exact);
+            exact = null;
+        }
+    }
+
+    private static void close(ImageDither dither) {
+        if (dither instanceof AutoCloseable) {
+            try {
+                ((AutoCloseable) dither).close();
+            } catch (Exception e) {
+                throw new IllegalStateException("Could not close " + dither + ".", e);
+            }
+        }
+    }
+
+    private BufferedImage run(int[] pixels, byte[] bytes, BufferedImage image) {
+        DitherEvent event = DitherEvent.start();
+        CANVAS.pixels();
+        NEXT_TILE.set(0);
+        failed = false;
+        for (Worker worker : WORKERS) {
+            worker.pixels = pixels;
+            worker.bytes = bytes;
+            worker.image = image;
+        }
+        for (int i = 1; i < THREAD_COUNT; i++) {
+            FUTURES[i] = EXECUTOR.submit(WORKERS[i]);
+        }
+        RuntimeException error = null;
+        try {
+            WORKERS[0].run();
+        } catch (RuntimeException e) {
+            error = e;
+        }
+        // every worker is waited for even when interrupted, they read the input and write the canvas until they are done
+        boolean interrupted = false;
+        for (int i = 1; i < THREAD_COUNT; i++) {
+            while (true) {
+                try {
+                    FUTURES[i].get();
+                } catch (ExecutionException e) {
+                    if (error == null) {
+                        error = e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : new IllegalStateException(e.getCause());
+                    }
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                    failed = true;
+                    continue;
+                }
+                break;
+            }
+            FUTURES[i] = null;
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+            if (error == null) {
+                error = new CancellationException("Interrupted while waiting for the workers.");
+            }
+        }
+        for (Worker worker : WORKERS) {
+            worker.pixels = null;
+            worker.bytes = null;
+            worker.image = null;
+        }
+        if (error != null) {
+            throw error;
+        }
+        DitherMetrics.dithered(event, this, WIDTH, HEIGHT, null, THREAD_COUNT, 0, 0);
+        return CANVAS.image();
+    }
+
+    // the next tile to dither, none once a worker failed
+    private int nextTile() {
+        return failed ? TILE_COUNT : NEXT_TILE.getAndIncrement();
+    }
+
+    private final class Worker implements Runnable {
+
+        // tiles on the edges have other sizes, every size gets its own instance and raster
+        private final Map<Long, ImageDither> DITHERS = new HashMap<>();
+        private final Map<Long, int[]> REGIONS = new HashMap<>();
+        private final int[] ROW_BUFFER = new int[TILE_WIDTH + OVERLAP];
+        private final byte[] BYTE_BUFFER = new byte[(TILE_WIDTH + OVERLAP) * 3];
+        private int[] pixels;
+        private byte[] bytes;
+        private BufferedImage image;
+
+        @Override
+        public void run() {
+            try {
+                ditherTiles();
+            } catch (RuntimeException | Error e) {
+                failed = true;
+                throw e;
+            }
+        }
+
+        private void ditherTiles() {
+            for (int tile = nextTile(); tile < TILE_COUNT; tile = nextTile()) {
+                int tileX = (tile % TILES_X) * TILE_WIDTH;
+                int tileY = (tile / TILES_X) * TILE_HEIGHT;
+                int marginX = Math.min(OVERLAP, tileX);
+                int marginY = Math.min(OVERLAP, tileY);
+                int coreWidth = Math.min(TILE_WIDTH, WIDTH - tileX);
+                int coreHeight = Math.min(TILE_HEIGHT, HEIGHT - tileY);
+                int regionWidth = marginX + coreWidth;
+                int regionHeight = marginY + coreHeight;
+                long size = ((long) regionWidth << 32) | regionHeight;
+                int[] region = REGIONS.computeIfAbsent(size, key -> new int[regionWidth * regionHeight]);
+                loadRegion(region, tileX - marginX, tileY - marginY, regionWidth, regionHeight);
+                ImageDither dither = DITHERS.computeIfAbsent(size, key -> FACTORY.create(regionWidth, regionHeight));
+                BufferedImage result;
+                DitherMetrics.enterInner();
+                try {
+                    result = dither.dither(region);
+                } finally {
+                    DitherMetrics.exitInner();
+                }
+                // only the core of the tile is kept, the margin was just there to warm up the error
+                int[] canvas = CANVAS.pixels();
+                for (int row = 0; row < coreHeight; row++) {
+                    Images.readRow(result, marginX, marginY + row, coreWidth, ROW_BUFFER, BYTE_BUFFER);
+                    int canvasOffset = ((tileY + row) * WIDTH) + tileX;
+                    System.arraycopy(ROW_BUFFER, 0, canvas, canvasOffset, coreWidth);
+                    CANVAS.store(canvasOffset, coreWidth);
+                }
+            }
+        }
+
+        private void loadRegion(int[] region, int x0, int y0, int regionWidth, int regionHeight) {
+            for (int row = 0; row < regionHeight; row++) {
+                int y = y0 + row;
+                int regionOffset = row * regionWidth;
+                if (pixels != null) {
+                    System.arraycopy(pixels, (y * WIDTH) + x0, region, regionOffset, regionWidth);
+                } else if (bytes != null) {
+                    int bufferOffset = ((y * WIDTH) + x0) * 3;
+                    for (int x = 0; x < regionWidth; x++) {
+                        int red = bytes[bufferOffset + 2] & 0xFF;
+                        int green = bytes[bufferOffset + 1] & 0xFF;
+                        int blue = bytes[bufferOffset] & 0xFF;
+                        region[regionOffset + x] = (255 << 24) + (red << 16) + (green << 8) + blue;
+                        bufferOffset += 3;
+                    }
+                } else if (buffer != null) {
+                    Images.readRow(buffer, format, bufferStart + (y * bufferStride) + (x0 * format.getBytesPerPixel()), regionWidth, region, regionOffset);
+                } else {
+                    Images.readRow(image, x0, y, regionWidth, ROW_BUFFER, BYTE_BUFFER);
+                    System.arraycopy(ROW_BUFFER, 0, region, regionOffset, regionWidth);
+                }
+            }
+        }
+
+    }
+
+    /**
+     * How far a tiled result is from the exact sequential one. Two dithers of the same image rarely agree pixel
+     * for pixel, so next to the share of differing pixels this also compares the local average color, which is
+     * what the eye sees: both results are box-blurred over {@link #RADIUS} pixels and the mean absolute
+     * difference per channel is reported on the 0-255 scale.
+     */
+    public static final class Quality {
+
+        public static final int RADIUS = 2;
+
+        private final double MISMATCHED_PIXELS;
+        private final double MEAN_TONE_ERROR;
+        private final double MAX_TONE_ERROR;
+
+        private Quality(double mismatchedPixels, double meanToneError, double maxToneError) {
+            this.MISMATCHED_PIXELS = mismatchedPixels;
+            this.MEAN_TONE_ERROR = meanToneError;
+            this.MAX_TONE_ERROR = maxToneError;
+        }
+
+        static Quality measure(int[] approximate, int[] exact, int width, int height) {
+            int mismatched = 0;
+            for (int i = 0; i < exact.length; i++) {
+                if (((approximate[i] ^ exact[i]) & 0xFFFFFF) != 0) {
+                    mismatched++;
+                }
+            }
+            long[][] approximateSums = summedAreas(approximate, width, height);
+            long[][] exactSums = summedAreas(exact, width, height);
+            double total = 0;
+            double max = 0;
+            for (int y = 0; y < height; y++) {
+                int top = Math.max(0, y - RADIUS);
+                int bottom = Math.min(height, y + RADIUS + 1);
+                for (int x = 0; x < width; x++) {
+                    int left = Math.max(0, x - RADIUS);
+                    int right = Math.min(width, x + RADIUS + 1);
+                    int area = (bottom - top) * (right - left);
+                    for (int channel = 0; channel < 3; channel++) {
+                        long approximateSum = boxSum(approximateSums[channel], width, left, top, right, bottom);
+                        long exactSum = boxSum(exactSums[channel], width, left, top, right, bottom);
+                        double difference = Math.abs(approximateSum - exactSum) / (double) area;
+                        total += difference;
+                        max = Math.max(max, difference);
+                    }
+                }
+            }
+            return new Quality(mismatched / (double) exact.length, total / (exact.length * 3.0), max);
+        }
+
+        // one table per channel, (width + 1) * (height + 1) with a zero row and column in front
+        private static long[][] summedAreas(int[] pixels, int width, int height) {
+            long[][] sums = new long[3][(width + 1) * (height + 1)];
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    int color = pixels[(y * width) + x];
+                    int index = ((y + 1) * (width + 1)) + x + 1;
+                    for (int channel = 0; channel < 3; channel++) {
+                        int value = (color >> (16 - (channel * 8))) & 0xFF;
+                        sums[channel][index] = value + sums[channel][index - 1] + sums[channel][index - width - 1] - sums[channel][index - width - 2];
+                    }
+                }
+            }
+            return sums;
+        }
+
+        private static long boxSum(long[] sums, int width, int left, int top, int right, int bottom) {
+            int stride = width + 1;
+            return sums[(bottom * stride) + right] - sums[(top * stride) + right] - sums[(bottom * stride) + left] + sums[(top * stride) + left];
+        }
+
+        // share of pixels that differ from the exact result, 0 to 1
+        public double getMismatchedPixels() {
+            return MISMATCHED_PIXELS;
+        }
+
+        // mean absolute difference of the blurred results, per channel on the 0-255 scale
+        public double getMeanToneError() {
+            return MEAN_TONE_ERROR;
+        }
+
+        // the worst blurred difference anywhere in the image, this is where seams show up
+        public double getMaxToneError() {
+            return MAX_TONE_ERROR;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%.2f%% pixels differ, tone error %.3f mean / %.3f max", MISMATCHED_PIXELS * 100, MEAN_TONE_ERROR, MAX_TONE_ERROR);
+        }
+
+    }
+
+}
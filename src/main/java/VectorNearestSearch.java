@@ -0,0 +1,101 @@
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Nearest color search with the incubating Vector API. A single color is compared against a whole vector of
+ * palette entries at a time, a batch of colors is resolved a vector of pixels at a time against one palette entry.
+ * <p>
+ * Distances use the same float expression as the linear scan in {@link ColorPalette}, without fused multiply-adds,
+ * and a lane only takes a new entry when it is strictly closer, so ties go to the lower palette index and the
+ * results are identical to the scan. This class must only be loaded when {@link #isAvailable()} is true.
+ */
+final class VectorNearestSearch {
+
+    private static final VectorSpecies<Float> FLOATS = FloatVector.SPECIES_PREFERRED;
+    private static final VectorSpecies<Integer> INTS = FLOATS.withLanes(int.class);
+    private static final int LANES = FLOATS.length();
+
+    private final int COUNT;
+    // padded to a multiple of the lane count, the padding can never be the nearest entry
+    private final float[] RED_VALUES;
+    private final float[] GREEN_VALUES;
+    private final float[] BLUE_VALUES;
+    private final int[] LANE_INDICES;
+
+    VectorNearestSearch(float[] linearR, float[] linearG, float[] linearB) {
+        this.COUNT = linearR.length;
+        int paddedLength = ((COUNT + LANES - 1) / LANES) * LANES;
+        this.RED_VALUES = new float[paddedLength];
+        this.GREEN_VALUES = new float[paddedLength];
+        this.BLUE_VALUES = new float[paddedLength];
+        System.arraycopy(linearR, 0, RED_VALUES, 0, COUNT);
+        System.arraycopy(linearG, 0, GREEN_VALUES, 0, COUNT);
+        System.arraycopy(linearB, 0, BLUE_VALUES, 0, COUNT);
+        for (int i = COUNT; i < paddedLength; i++) {
+            RED_VALUES[i] = Float.MAX_VALUE;
+            GREEN_VALUES[i] = Float.MAX_VALUE;
+            BLUE_VALUES[i] = Float.MAX_VALUE;
+        }
+        this.LANE_INDICES = new int[LANES];
+        for (int i = 0; i < LANES; i++) {
+            LANE_INDICES[i] = i;
+        }
+    }
+
+    // without real SIMD registers the Vector API falls back to a slow pure Java implementation
+    static boolean isAvailable() {
+        return LANES >= 4;
+    }
+
+    int findNearestIndex(float linearRed, float linearGreen, float linearBlue) {
+        FloatVector red = FloatVector.broadcast(FLOATS, linearRed);
+        FloatVector green = FloatVector.broadcast(FLOATS, linearGreen);
+        FloatVector blue = FloatVector.broadcast(FLOATS, linearBlue);
+        FloatVector minDistance = FloatVector.broadcast(FLOATS, Float.MAX_VALUE);
+        IntVector nearestIndex = IntVector.zero(INTS);
+        IntVector index = IntVector.fromArray(INTS, LANE_INDICES, 0);
+        for (int i = 0; i < RED_VALUES.length; i += LANES) {
+            FloatVector deltaRed = red.sub(FloatVector.fromArray(FLOATS, RED_VALUES, i));
+            FloatVector deltaGreen = green.sub(FloatVector.fromArray(FLOATS, GREEN_VALUES, i));
+            FloatVector deltaBlue = blue.sub(FloatVector.fromArray(FLOATS, BLUE_VALUES, i));
+            FloatVector distance = deltaRed.mul(deltaRed).add(deltaGreen.mul(deltaGreen)).add(deltaBlue.mul(deltaBlue));
+            VectorMask<Float> closer = distance.lt(minDistance);
+            minDistance = minDistance.blend(distance, closer);
+            nearestIndex = nearestIndex.blend(index, closer.cast(INTS));
+            index = index.add(LANES);
+        }
+        // every lane holds the lowest index of its own minimum, the answer is the lowest of those at the overall minimum
+        float overallMinimum = minDistance.reduceLanes(VectorOperators.MIN);
+        VectorMask<Integer> atMinimum = minDistance.eq(overallMinimum).cast(INTS);
+        return nearestIndex.reduceLanes(VectorOperators.MIN, atMinimum);
+    }
+
+    // resolves length colors that are already in linear sRGB, a vector of them per palette entry
+    void findNearestIndices(float[] linearR, float[] linearG, float[] linearB, int[] indices, int offset, int length) {
+        int x = 0;
+        for (int bound = FLOATS.loopBound(length); x < bound; x += LANES) {
+            FloatVector red = FloatVector.fromArray(FLOATS, linearR, x);
+            FloatVector green = FloatVector.fromArray(FLOATS, linearG, x);
+            FloatVector blue = FloatVector.fromArray(FLOATS, linearB, x);
+            FloatVector minDistance = FloatVector.broadcast(FLOATS, Float.MAX_VALUE);
+            IntVector nearestIndex = IntVector.zero(INTS);
+            for (int i = 0; i < COUNT; i++) {
+                FloatVector deltaRed = red.sub(RED_VALUES[i]);
+                FloatVector deltaGreen = green.sub(GREEN_VALUES[i]);
+                FloatVector deltaBlue = blue.sub(BLUE_VALUES[i]);
+                FloatVector distance = deltaRed.mul(deltaRed).add(deltaGreen.mul(deltaGreen)).add(deltaBlue.mul(deltaBlue));
+                VectorMask<Float> closer = distance.lt(minDistance);
+                minDistance = minDistance.blend(distance, closer);
+                nearestIndex = nearestIndex.blend(i, closer.cast(INTS));
+            }
+            nearestIndex.intoArray(indices, offset + x);
+        }
+        for (; x < length; x++) {
+            indices[offset + x] = findNearestIndex(linearR[x], linearG[x], linearB[x]);
+        }
+    }
+
+}